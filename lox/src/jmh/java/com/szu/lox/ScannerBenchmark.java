@@ -0,0 +1,111 @@
+package com.szu.lox;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// 扫描器的吞吐量：把 src/test/samples 中的样例拼接到指定大小，统计每秒扫描的词法单元数
+// 运行方式：mvn -P benchmark test-compile exec:exec
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScannerBenchmark {
+    private static final Path SAMPLES = Paths.get("src/test/samples");
+    private static final PrintStream SINK = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+    });
+
+    // 输入的大小，单位 MB
+    @Param({"1", "4", "16"})
+    public int megabytes;
+
+    private String source;
+
+    // 每秒扫描的词法单元数由 JMH 按这里的计数报告
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        List<String> corpus = corpus();
+        int size = megabytes << 20;
+        StringBuilder builder = new StringBuilder(size + (1 << 16));
+        while (builder.length() < size) {
+            for (String sample : corpus) {
+                builder.append(sample).append('\n');
+            }
+        }
+        source = builder.toString();
+    }
+
+    @Benchmark
+    public void scan(Counters counters) {
+        Scanner scanner = new Scanner(source, new Diagnostics(SINK));
+        long tokens = 0;
+        while (scanner.next().type != TokenType.EOF) tokens++;
+        counters.tokens += tokens;
+    }
+
+    // 所有能够正确扫描的样例；有词法错误的样例（例如没有结束的字符串）会吞掉后面拼接的源码
+    private static List<String> corpus() throws IOException {
+        try (Stream<Path> files = Files.walk(SAMPLES)) {
+            List<Path> paths = files.filter(path -> path.toString().endsWith(".lox"))
+                    .sorted()
+                    .collect(Collectors.toList());
+            List<String> corpus = new ArrayList<>();
+            for (Path path : paths) {
+                String sample = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+                Diagnostics diagnostics = new Diagnostics(SINK);
+                Scanner scanner = new Scanner(sample, diagnostics);
+                while (scanner.next().type != TokenType.EOF) ;
+                if (!diagnostics.hadError) corpus.add(sample);
+            }
+            return corpus;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ScannerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -8,12 +8,12 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitAssignExpr(Expr.Assign expr) {
-        return parenthesize2("=", expr.name.lexeme, expr.value);
+        return parenthesize2("=", expr.name.lexeme(), expr.value);
     }
 
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.lexeme,
+        return parenthesize(expr.operator.lexeme(),
                 expr.left, expr.right);
     }
 
@@ -24,7 +24,7 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitGetExpr(Expr.Get expr) {
-        return parenthesize2(".", expr.object, expr.name.lexeme);
+        return parenthesize2(".", expr.object, expr.name.lexeme());
     }
 
     @Override
@@ -40,13 +40,13 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitLogicalExpr(Expr.Logical expr) {
-        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+        return parenthesize(expr.operator.lexeme(), expr.left, expr.right);
     }
 
     @Override
     public String visitSetExpr(Expr.Set expr) {
         return parenthesize2("=",
-                expr.object, expr.name.lexeme, expr.value);
+                expr.object, expr.name.lexeme(), expr.value);
     }
 
     @Override
@@ -61,12 +61,12 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
+        return parenthesize(expr.operator.lexeme(), expr.right);
     }
 
     @Override
     public String visitVariableExpr(Expr.Variable expr) {
-        return expr.name.lexeme;
+        return expr.name.lexeme();
     }
 
 
@@ -106,10 +106,10 @@ class AstPrinter implements Expr.Visitor<String> {
         Expr expression = new Expr.Binary(
                 new Expr.Unary(
                         new Token(TokenType.MINUS, "-", null, 1),
-                        new Expr.Literal(123)),
+                        new Expr.Literal(null, 123)),
                 new Token(TokenType.STAR, "*", null, 1),
                 new Expr.Grouping(
-                        new Expr.Literal(45.67)));
+                        new Expr.Literal(null, 45.67)));
 
         System.out.println(new AstPrinter().print(expression));
     }
@@ -0,0 +1,102 @@
+package com.szu.lox;
+
+// 执行预算：限制一次运行的时间、步数和分配的内存
+// 解释器和虚拟机在循环回边和函数入口处各消耗一步，死循环和无限递归都会在有限步内被发现
+// 读取时钟比计数贵，每隔 CLOCK_INTERVAL 步才检查一次时间，同时检查运行线程是否被中断（取消运行）
+// 创建环境、实例和拼接字符串时按估算的大小记账，超出限额后在下一步报错，
+// 两步之间能分配的内存取决于源码长度，是有限的
+class Budget {
+    private static final long CLOCK_INTERVAL = 1024;
+
+    // 时间限制（纳秒）、步数限制和内存限制（字节），不大于 0 表示不限制
+    private final long timeLimit;
+    private final long stepLimit;
+    private final long memoryLimit;
+    // 本次运行已经消耗的步数和分配的字节数
+    private long steps;
+    private long allocated;
+    // 消耗到这个步数时才做下一次检查
+    private long nextCheck;
+    private long deadline;
+    private String message;
+
+    Budget(long timeLimitMillis, long stepLimit, long memoryLimit) {
+        this.timeLimit = timeLimitMillis * 1_000_000L;
+        this.stepLimit = stepLimit;
+        this.memoryLimit = memoryLimit > 0 ? memoryLimit : Long.MAX_VALUE;
+        start();
+    }
+
+    // 对象头、引用和数组头的估算大小
+    static long objectBytes(int references) {
+        return 40 + 4L * references;
+    }
+
+    static long stringBytes(int length) {
+        return 40 + 2L * length;
+    }
+
+    // 每次运行开始时重新计时计数
+    void start() {
+        steps = 0;
+        allocated = 0;
+        deadline = System.nanoTime() + timeLimit;
+        message = null;
+        scheduleCheck();
+    }
+
+    // 消耗一步，超出预算时返回 true，由调用者按所在位置报告运行时错误
+    boolean step() {
+        return ++steps >= nextCheck && exceeded();
+    }
+
+    // 记录分配的内存，超出限额时让下一步做检查
+    void allocate(long bytes) {
+        allocated += bytes;
+        if (allocated > memoryLimit) nextCheck = 0;
+    }
+
+    // 超出预算的原因
+    String message() {
+        return message;
+    }
+
+    long steps() {
+        return steps;
+    }
+
+    long allocated() {
+        return allocated;
+    }
+
+    private boolean exceeded() {
+        if (allocated > memoryLimit) {
+            message = "Memory limit exceeded.";
+            return true;
+        }
+
+        if (stepLimit > 0 && steps > stepLimit) {
+            message = "Instruction limit exceeded.";
+            return true;
+        }
+
+        if (timeLimit > 0 && System.nanoTime() - deadline >= 0) {
+            message = "Execution time limit exceeded.";
+            return true;
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            message = "Execution cancelled.";
+            return true;
+        }
+
+        scheduleCheck();
+        return false;
+    }
+
+    private void scheduleCheck() {
+        long next = steps + CLOCK_INTERVAL;
+        if (stepLimit > 0) next = Math.min(next, stepLimit + 1);
+        nextCheck = next;
+    }
+}
@@ -0,0 +1,30 @@
+package com.szu.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// 字节码块：指令序列、每个字节对应的源码行号以及常量表
+class Chunk {
+    byte[] code = new byte[16];
+    int[] lines = new int[16];
+    int count = 0;
+    final List<Object> constants = new ArrayList<>();
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    // 添加常量，返回常量下标
+    int addConstant(Object value) {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+}
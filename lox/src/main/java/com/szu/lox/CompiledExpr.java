@@ -0,0 +1,6 @@
+package com.szu.lox;
+
+// 热点函数编译后的表达式，由 FunctionCompiler 生成
+interface CompiledExpr {
+    Object eval(Interpreter interpreter, Environment environment);
+}
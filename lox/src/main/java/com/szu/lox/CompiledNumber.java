@@ -0,0 +1,11 @@
+package com.szu.lox;
+
+// 结果一定是数字的编译后表达式（Expr.numeric），算术运算之间直接传递 double，不装箱
+interface CompiledNumber extends CompiledExpr {
+    double evalNumber(Interpreter interpreter, Environment environment);
+
+    @Override
+    default Object eval(Interpreter interpreter, Environment environment) {
+        return Interpreter.box(evalNumber(interpreter, environment));
+    }
+}
@@ -0,0 +1,7 @@
+package com.szu.lox;
+
+// 热点函数编译后的语句，由 FunctionCompiler 生成
+// 正常执行完返回 null；执行到 return 语句时返回函数的返回值，与 Interpreter 的语句执行结果约定相同
+interface CompiledStmt {
+    Object exec(Interpreter interpreter, Environment environment);
+}
@@ -0,0 +1,724 @@
+package com.szu.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 字节码编译器 ===> 将通过 Resolver 检查的语法树编译为字节码
+// 局部变量直接存放在虚拟机栈上，被闭包捕获的变量通过上值访问
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // 单字节操作数能表示的数量上限
+    private static final int UINT8_COUNT = 256;
+    // 双字节跳转偏移的上限
+    private static final int MAX_JUMP = 65535;
+    // 双字节全局变量下标的上限
+    private static final int MAX_GLOBALS = 65535;
+
+    private enum FunctionType {
+        FUNCTION,
+        INITIALIZER,
+        METHOD,
+        SCRIPT
+    }
+
+    private static class Local {
+        final String name;
+        // 所在作用域深度，-1 表示已声明但还未初始化
+        int depth;
+        // 是否被闭包捕获，离开作用域时需要关闭上值
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        // 外层函数的局部变量槽位或上值下标
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    // 正在编译的函数，嵌套的函数声明通过 enclosing 串起来
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final FunctionType type;
+        final ObjFunction function;
+        final Local[] locals = new Local[UINT8_COUNT];
+        int localCount = 0;
+        final Upvalue[] upvalues = new Upvalue[UINT8_COUNT];
+        int scopeDepth = 0;
+        // 标识符在常量表中的下标，同一个名字只占用一个常量
+        final Map<String, Integer> identifiers = new HashMap<>();
+        // 编译到当前位置时，本函数栈帧中值的个数
+        int stackHeight = 0;
+
+        FunctionState(FunctionState enclosing, FunctionType type, String name) {
+            this.enclosing = enclosing;
+            this.type = type;
+            this.function = new ObjFunction(name);
+
+            // 槽位 0 存放被调用的函数，在方法中则存放 this
+            String slotZero = type == FunctionType.METHOD ||
+                    type == FunctionType.INITIALIZER ? "this" : "";
+            locals[localCount++] = new Local(slotZero, 0);
+            stackHeight = 1;
+        }
+    }
+
+    // 正在编译的类，用于判断是否有超类
+    private static class ClassState {
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private final Diagnostics diagnostics;
+    // 全局变量表，全局变量按下标访问，与 Resolver 分配的下标一致
+    private final Environment globals;
+    private FunctionState current = null;
+    private ClassState currentClass = null;
+    // 当前生成的指令对应的源码行，运行时错误据此报告行号
+    private int line = 1;
+    // 一条语句中只报告第一个编译错误，避免连带错误
+    private boolean panicMode = false;
+
+    Compiler(Diagnostics diagnostics, Environment globals) {
+        this.diagnostics = diagnostics;
+        this.globals = globals;
+    }
+
+    // 将整个程序编译为一个顶层函数
+    ObjFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, FunctionType.SCRIPT, null);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        return endFunction();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+        panicMode = false;
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = identifierConstant(stmt.name);
+        int global = parseVariable(stmt.name);
+
+        emitOp(OpCode.CLASS, 1);
+        emitByte(nameConstant);
+        defineVariable(global);
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+
+            // 超类保存在一个名为 super 的局部变量中，供方法捕获
+            beginScope();
+            addLocal("super", stmt.superclass.name);
+            markInitialized();
+
+            namedVariable(stmt.name.lexeme(), stmt.name, false);
+            line = stmt.superclass.name.line;
+            emitOp(OpCode.INHERIT, -1);
+            classState.hasSuperclass = true;
+        }
+
+        // 将类放到栈顶，以便把方法添加进去
+        namedVariable(stmt.name.lexeme(), stmt.name, false);
+        for (Stmt.Function method : stmt.methods) {
+            int methodConstant = identifierConstant(method.name);
+            FunctionType type = method.name.lexeme().equals("init")
+                    ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            line = method.name.line;
+            emitOp(OpCode.METHOD, -1);
+            emitByte(methodConstant);
+        }
+        emitOp(OpCode.POP, -1);
+
+        if (classState.hasSuperclass) endScope();
+
+        currentClass = currentClass.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        int global = parseVariable(stmt.name);
+        // 先标记为已初始化，函数体内可以递归调用自身
+        markInitialized();
+        function(stmt, FunctionType.FUNCTION);
+        line = stmt.name.line;
+        defineVariable(global);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP, -1);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        // 跳转到这里时条件值还在栈上
+        adjustStack(1);
+        emitOp(OpCode.POP, -1);
+
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.PRINT, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else {
+            compile(stmt.value);
+            line = stmt.keyword.line;
+            emitOp(OpCode.RETURN, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        int global = parseVariable(stmt.name);
+
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OpCode.NIL, 1);
+        }
+
+        line = stmt.name.line;
+        defineVariable(global);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP, -1);
+        compile(stmt.body);
+        emitLoop(loopStart, stmt.end);
+
+        patchJump(exitJump);
+        // 跳出循环时条件值还在栈上
+        adjustStack(1);
+        emitOp(OpCode.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        namedVariable(expr.name.lexeme(), expr.name, true);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+                emitOp(OpCode.EQUAL, -1);
+                emitOp(OpCode.NOT, 0);
+                break;
+            case EQUAL_EQUAL:   emitOp(OpCode.EQUAL, -1); break;
+            case GREATER:       emitOp(OpCode.GREATER, -1); break;
+            case GREATER_EQUAL: emitOp(OpCode.GREATER_EQUAL, -1); break;
+            case LESS:          emitOp(OpCode.LESS, -1); break;
+            case LESS_EQUAL:    emitOp(OpCode.LESS_EQUAL, -1); break;
+            case PLUS:          emitOp(OpCode.ADD, -1); break;
+            case MINUS:         emitOp(OpCode.SUBTRACT, -1); break;
+            case STAR:          emitOp(OpCode.MULTIPLY, -1); break;
+            case SLASH:         emitOp(OpCode.DIVIDE, -1); break;
+        }
+        return null;
+    }
+
+    // 对 obj.method(...) 和 super.method(...) 直接调用方法，不创建绑定方法对象
+    // 与解释器一致：先查找方法（找不到则报错），再对参数求值
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            int name = identifierConstant(get.name);
+            line = get.name.line;
+            emitOp(OpCode.GET_METHOD, 1);
+            emitByte(name);
+
+            arguments(expr);
+            line = expr.paren.line;
+            emitOp(OpCode.CALL_METHOD, -(expr.arguments.size() + 1));
+            emitByte(expr.arguments.size());
+            return null;
+        }
+
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            int name = identifierConstant(superExpr.method);
+            loadThisAndSuper(superExpr);
+            line = superExpr.method.line;
+            emitOp(OpCode.GET_SUPER_METHOD, 0);
+            emitByte(name);
+
+            arguments(expr);
+            line = expr.paren.line;
+            emitOp(OpCode.CALL_METHOD, -(expr.arguments.size() + 1));
+            emitByte(expr.arguments.size());
+            return null;
+        }
+
+        compile(expr.callee);
+        arguments(expr);
+        line = expr.paren.line;
+        emitOp(OpCode.CALL, -expr.arguments.size());
+        emitByte(expr.arguments.size());
+        return null;
+    }
+
+    private void arguments(Expr.Call expr) {
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        int name = identifierConstant(expr.name);
+        line = expr.name.line;
+        emitOp(OpCode.GET_PROPERTY, 0);
+        emitByte(name);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.token != null) line = expr.token.line;
+
+        if (expr.value == null) {
+            emitOp(OpCode.NIL, 1);
+        } else if (expr.value.equals(true)) {
+            emitOp(OpCode.TRUE, 1);
+        } else if (expr.value.equals(false)) {
+            emitOp(OpCode.FALSE, 1);
+        } else {
+            int constant = makeConstant(expr.token, expr.value);
+            emitOp(OpCode.CONSTANT, 1);
+            emitByte(constant);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        line = expr.operator.line;
+
+        if (expr.operator.type == TokenType.AND) {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP, -1);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emitOp(OpCode.POP, -1);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        int name = identifierConstant(expr.name);
+        compile(expr.value);
+        line = expr.name.line;
+        emitOp(OpCode.SET_PROPERTY, -1);
+        emitByte(name);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        int name = identifierConstant(expr.method);
+        loadThisAndSuper(expr);
+        line = expr.method.line;
+        emitOp(OpCode.GET_SUPER, -1);
+        emitByte(name);
+        return null;
+    }
+
+    private void loadThisAndSuper(Expr.Super expr) {
+        line = expr.keyword.line;
+        namedVariable("this", expr.keyword, false);
+        namedVariable("super", expr.keyword, false);
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        namedVariable("this", expr.keyword, false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        if (expr.operator.type == TokenType.BANG) {
+            emitOp(OpCode.NOT, 0);
+        } else {
+            emitOp(OpCode.NEGATE, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        namedVariable(expr.name.lexeme(), expr.name, false);
+        return null;
+    }
+
+    // 编译函数体，并在外层函数中生成创建闭包的指令
+    private void function(Stmt.Function stmt, FunctionType type) {
+        FunctionState state = new FunctionState(current, type,
+                stmt.name.lexeme());
+        current = state;
+        beginScope();
+
+        for (Token param : stmt.params) {
+            current.function.arity++;
+            declareVariable(param);
+            markInitialized();
+            // 参数由调用者压入栈中
+            adjustStack(1);
+        }
+
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+
+        ObjFunction function = endFunction();
+
+        line = stmt.name.line;
+        int constant = makeConstant(stmt.name, function);
+        emitOp(OpCode.CLOSURE, 1);
+        emitByte(constant);
+        for (int i = 0; i < function.upvalueCount; i++) {
+            emitByte(state.upvalues[i].isLocal ? 1 : 0);
+            emitByte(state.upvalues[i].index);
+        }
+    }
+
+    private ObjFunction endFunction() {
+        emitReturn();
+
+        ObjFunction function = current.function;
+        List<Object> constants = function.chunk.constants;
+        function.constants = new Object[constants.size()];
+        function.numbers = new double[constants.size()];
+        for (int i = 0; i < constants.size(); i++) {
+            Object constant = constants.get(i);
+            if (constant instanceof Double) {
+                function.constants[i] = VM.NUMBER;
+                function.numbers[i] = (double) constant;
+            } else {
+                function.constants[i] = constant;
+            }
+        }
+
+        current = current.enclosing;
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        while (current.localCount > 0 &&
+               current.locals[current.localCount - 1].depth > current.scopeDepth) {
+            if (current.locals[current.localCount - 1].isCaptured) {
+                emitOp(OpCode.CLOSE_UPVALUE, -1);
+            } else {
+                emitOp(OpCode.POP, -1);
+            }
+            current.localCount--;
+        }
+    }
+
+    // 声明变量，全局变量返回它在全局变量表中的下标
+    private int parseVariable(Token name) {
+        declareVariable(name);
+        if (current.scopeDepth > 0) return 0;
+
+        return globalIndex(name);
+    }
+
+    private int globalIndex(Token name) {
+        int index = globals.indexOf(name.lexeme());
+        if (index > MAX_GLOBALS) {
+            error(name, "Too many global variables.");
+            return 0;
+        }
+        return index;
+    }
+
+    private void declareVariable(Token name) {
+        if (current.scopeDepth == 0) return;
+
+        // 同一作用域中的重复声明已由 Resolver 检查
+        addLocal(name.lexeme(), name);
+    }
+
+    private void addLocal(String name, Token token) {
+        if (current.localCount == UINT8_COUNT) {
+            error(token, "Too many local variables in function.");
+            return;
+        }
+
+        current.locals[current.localCount++] = new Local(name, -1);
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) return;
+        current.locals[current.localCount - 1].depth = current.scopeDepth;
+    }
+
+    // 局部变量的值已经在栈上，只需标记为已初始化
+    private void defineVariable(int global) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+
+        emitOp(OpCode.DEFINE_GLOBAL, -1);
+        emitShort(global);
+    }
+
+    private void namedVariable(String name, Token token, boolean assign) {
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            emitOp(assign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL, assign ? 0 : 1);
+        } else if ((arg = resolveUpvalue(current, name, token)) != -1) {
+            emitOp(assign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE, assign ? 0 : 1);
+        } else {
+            emitOp(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL, assign ? 0 : 1);
+            emitShort(globalIndex(token));
+            return;
+        }
+        emitByte(arg);
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.localCount - 1; i >= 0; i--) {
+            if (state.locals[i].name.equals(name)) return i;
+        }
+
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name, Token token) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals[local].isCaptured = true;
+            return addUpvalue(state, local, true, token);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name, token);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false, token);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal,
+                           Token token) {
+        int upvalueCount = state.function.upvalueCount;
+
+        for (int i = 0; i < upvalueCount; i++) {
+            Upvalue upvalue = state.upvalues[i];
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+
+        if (upvalueCount == UINT8_COUNT) {
+            error(token, "Too many closure variables in function.");
+            return 0;
+        }
+
+        state.upvalues[upvalueCount] = new Upvalue(index, isLocal);
+        return state.function.upvalueCount++;
+    }
+
+    private int identifierConstant(Token name) {
+        Integer index = current.identifiers.get(name.lexeme());
+        if (index != null) return index;
+
+        int constant = makeConstant(name, name.lexeme());
+        current.identifiers.put(name.lexeme(), constant);
+        return constant;
+    }
+
+    private int makeConstant(Token token, Object value) {
+        int constant = current.function.chunk.addConstant(value);
+        if (constant >= UINT8_COUNT) {
+            error(token, "Too many constants in one chunk.");
+            return 0;
+        }
+
+        return constant;
+    }
+
+    private void emitByte(int b) {
+        current.function.chunk.write(b, line);
+    }
+
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    // 生成指令并记录它对栈高度的影响
+    private void emitOp(byte op, int stackEffect) {
+        emitByte(op);
+        adjustStack(stackEffect);
+    }
+
+    private void adjustStack(int stackEffect) {
+        current.stackHeight += stackEffect;
+        if (current.stackHeight > current.function.maxStack) {
+            current.function.maxStack = current.stackHeight;
+        }
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOp(OpCode.GET_LOCAL, 1);
+            emitByte(0);
+        } else {
+            emitOp(OpCode.NIL, 1);
+        }
+        emitOp(OpCode.RETURN, -1);
+    }
+
+    private int emitJump(byte op) {
+        emitOp(op, 0);
+        emitByte(0xff);
+        emitByte(0xff);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        // -2 跳过偏移量本身的两个字节
+        int jump = chunk.count - offset - 2;
+        if (jump > MAX_JUMP) {
+            error(chunk.lines[offset], "Too much code to jump over.");
+        }
+
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart, Token end) {
+        emitOp(OpCode.LOOP, 0);
+
+        int offset = current.function.chunk.count - loopStart + 2;
+        if (offset > MAX_JUMP) {
+            error(end, "Loop body too large.");
+        }
+
+        emitByte((offset >> 8) & 0xff);
+        emitByte(offset & 0xff);
+    }
+
+    private void error(Token token, String message) {
+        if (panicMode) return;
+        panicMode = true;
+        diagnostics.error(token, message);
+    }
+
+    private void error(int line, String message) {
+        if (panicMode) return;
+        panicMode = true;
+        diagnostics.error(line, message);
+    }
+}
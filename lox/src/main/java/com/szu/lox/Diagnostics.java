@@ -0,0 +1,50 @@
+package com.szu.lox;
+
+import java.io.PrintStream;
+
+// 错误诊断信息，每次运行各自持有一份，多个程序同时运行时互不干扰
+class Diagnostics {
+    // 错误输出
+    private final PrintStream err;
+    // 记录是否发生错误
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    Diagnostics(PrintStream err) {
+        this.err = err;
+    }
+
+    // 错误处理
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    private void report(int line, String where,
+                        String message) {
+        err.println(
+            "[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+
+    // 打印错误
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme() + "'", message);
+        }
+    }
+
+    // 打印运行时错误
+    void runtimeError(RuntimeError error) {
+        err.println(error.getMessage() +
+            "\n[line " + error.line + "]");
+        hadRuntimeError = true;
+    }
+
+    // 打印没有确定行号的运行时错误
+    void runtimeError(String message) {
+        err.println(message);
+        hadRuntimeError = true;
+    }
+}
@@ -1,68 +1,142 @@
 package com.szu.lox;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 // 环境
+// 全局作用域和局部作用域都按槽位存放变量：局部变量的槽位由 Resolver 按声明顺序分配，
+// 没有被闭包捕获的块不创建环境，变量借用外层环境的槽位；
+// 全局变量的下标由 Resolver 在全局变量表中按名字分配，运行时不再按名字查找
 class Environment {
+    // 全局变量表中已分配下标、但还没有定义的变量的值
+    static final Object UNDEFINED = new Object();
+
     // 外围作用域的引用
     final Environment enclosing;
-    // 存放变量 key - value 映射关系
-    private final Map<String, Object> values = new HashMap<>();
+    // 全局变量名到下标的映射，局部作用域为 null
+    private final Map<String, Integer> indexes;
+    // 全局变量名，下标与 slots 一致，局部作用域为 null
+    private final List<String> names;
+    // 存放变量，下标即 Resolver 分配的槽位或全局变量下标
+    private Object[] slots;
+    // 已定义的局部变量数量
+    private int count = 0;
 
     // 无参构造函数用于全局作用域环境，他是环境链的结束点
     Environment() {
         enclosing = null;
+        indexes = new HashMap<>();
+        names = new ArrayList<>();
+        slots = new Object[16];
     }
 
-    // 有参构造函数用于局部作用域环境
-    Environment(Environment enclosing) {
+    // 有参构造函数用于局部作用域环境，capacity 为 Resolver 计算的槽位数
+    Environment(Environment enclosing, int capacity) {
         this.enclosing = enclosing;
+        this.indexes = null;
+        this.names = null;
+        this.slots = new Object[Math.max(capacity, 1)];
     }
 
-    // 获取变量的值
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    // 全局变量在全局变量表中的下标，第一次出现的名字分配新的下标
+    int indexOf(String name) {
+        Integer index = indexes.get(name);
+        if (index != null) return index;
+
+        index = names.size();
+        if (index == slots.length) {
+            slots = Arrays.copyOf(slots, index * 2);
         }
+        slots[index] = UNDEFINED;
+        names.add(name);
+        indexes.put(name, index);
+        return index;
+    }
+
+    // 全局变量名
+    String nameOf(int index) {
+        return names.get(index);
+    }
+
+    // 全局变量表中已分配的下标数量
+    int globalCount() {
+        return names.size();
+    }
+
+    // 从下标 from 开始分配的全局变量名，按分配顺序
+    List<String> globalNames(int from) {
+        return new ArrayList<>(names.subList(from, names.size()));
+    }
 
-        // 当前作用域未找到，需要向上查找，到外部环境中查找
-        if (enclosing != null) return enclosing.get(name);
+    // 按下标获取全局变量的值
+    Object getGlobal(int index, Token name) {
+        Object value = slots[index];
+        if (value != UNDEFINED) return value;
 
         // 全局作用域还没有则报运行时错误
         throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+                "Undefined variable '" + name.lexeme() + "'.");
     }
 
-    // 给变量赋值
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-
-        // 当前作用域未找到，需去外层作用域中查找并赋值
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+    // 按下标给全局变量赋值
+    void assignGlobal(int index, Token name, Object value) {
+        if (slots[index] != UNDEFINED) {
+            slots[index] = value;
             return;
         }
 
         // 全局作用域都没有则报运行时错误
         throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+                "Undefined variable '" + name.lexeme() + "'.");
+    }
+
+    // 按下标读取全局变量，未定义时返回 UNDEFINED，由调用者报错
+    Object getGlobal(int index) {
+        return slots[index];
+    }
+
+    void setGlobal(int index, Object value) {
+        slots[index] = value;
+    }
+
+    // 获取全局变量的值
+    Object get(Token name) {
+        return getGlobal(indexOf(name.lexeme()), name);
     }
 
     // 添加或修改变量
+    // 局部变量按声明顺序依次占用槽位，与 Resolver 分配的槽位一致
     void define(String name, Object value) {
-        values.put(name, value);
+        if (indexes != null) {
+            slots[indexOf(name)] = value;
+            return;
+        }
+
+        define(value);
+    }
+
+    // 局部变量不需要名字，放入下一个槽位；函数调用时参数直接求值到这里
+    void define(Object value) {
+        if (count == slots.length) {
+            slots = Arrays.copyOf(slots, count * 2);
+        }
+        slots[count++] = value;
+    }
+
+    // 按 Resolver 分配的槽位定义局部变量，借用外层环境的块中的变量也在这里定义
+    void defineAt(int slot, Object value) {
+        slots[slot] = value;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
 
     Environment ancestor(int distance) {
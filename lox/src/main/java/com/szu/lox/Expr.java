@@ -3,6 +3,11 @@ package com.szu.lox;
 import java.util.List;
 
 abstract class Expr {
+  // Resolver 未能在局部作用域中找到的变量，其 depth 为 GLOBAL，slot 为全局变量表中的下标
+  static final int GLOBAL = -1;
+  // Resolver 标记的静态类型：求值结果一定是数字（或者运行时报错），可以不装箱计算
+  boolean numeric;
+
   interface Visitor<R> {
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
@@ -30,6 +35,8 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    int depth = GLOBAL;
+    int slot;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -76,6 +83,7 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+    int site;
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -90,7 +98,8 @@ abstract class Expr {
     final Expr expression;
   }
   static class Literal extends Expr {
-    Literal(Object value) {
+    Literal(Token token, Object value) {
+      this.token = token;
       this.value = value;
     }
 
@@ -99,6 +108,7 @@ abstract class Expr {
       return visitor.visitLiteralExpr(this);
     }
 
+    final Token token;
     final Object value;
   }
   static class Logical extends Expr {
@@ -132,6 +142,7 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+    int site;
   }
   static class Super extends Expr {
     Super(Token keyword, Token method) {
@@ -146,6 +157,9 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+    int depth = GLOBAL;
+    int slot;
+    int thisDepth;
   }
   static class This extends Expr {
     This(Token keyword) {
@@ -158,6 +172,8 @@ abstract class Expr {
     }
 
     final Token keyword;
+    int depth = GLOBAL;
+    int slot;
   }
   static class Unary extends Expr {
     Unary(Token operator, Expr right) {
@@ -185,6 +201,8 @@ abstract class Expr {
     }
 
     final Token name;
+    int depth = GLOBAL;
+    int slot;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,593 @@
+package com.szu.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// 热点函数编译器 ===> 将被频繁调用的函数体编译为 CompiledStmt / CompiledExpr 组成的树
+// 编译时就确定了运算符、变量的距离和槽位等，执行时不再经过 Visitor 的双重分派；
+// 每个节点都是一个很小的 lambda，HotSpot 可以把它们内联、编译为机器码
+// 编译结果只依赖语法树，解释器和环境在执行时传入，因此可以保存在语法树节点上
+class FunctionCompiler implements Expr.Visitor<CompiledExpr>,
+                                  Stmt.Visitor<CompiledStmt> {
+    private FunctionCompiler() {}
+
+    // 编译函数体，函数体直接在调用时创建的环境中执行
+    static CompiledStmt compile(Stmt.Function function) {
+        return new FunctionCompiler().sequence(function.body);
+    }
+
+    private CompiledStmt sequence(List<Stmt> body) {
+        CompiledStmt[] statements = compileAll(body);
+        if (statements.length == 1) return statements[0];
+
+        return (interpreter, environment) -> {
+            for (CompiledStmt statement : statements) {
+                Object result = statement.exec(interpreter, environment);
+                if (result != null) return result;
+            }
+            return null;
+        };
+    }
+
+    private CompiledStmt[] compileAll(List<Stmt> statements) {
+        CompiledStmt[] compiled = new CompiledStmt[statements.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = compile(statements.get(i));
+        }
+        return compiled;
+    }
+
+    private CompiledStmt compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private CompiledExpr compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public CompiledStmt visitBlockStmt(Stmt.Block stmt) {
+        // 没有被闭包捕获的块不创建环境
+        if (!stmt.scoped) return sequence(stmt.statements);
+
+        CompiledStmt[] statements = compileAll(stmt.statements);
+        int size = stmt.size;
+        return (interpreter, environment) -> {
+            interpreter.budget.allocate(Budget.objectBytes(size));
+            Environment block = new Environment(environment, size);
+            for (CompiledStmt statement : statements) {
+                Object result = statement.exec(interpreter, block);
+                if (result != null) return result;
+            }
+            return null;
+        };
+    }
+
+    // 函数中的类声明很少见，交给解释器执行
+    @Override
+    public CompiledStmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt> statements = Collections.singletonList(stmt);
+        return (interpreter, environment) ->
+                interpreter.executeBlock(statements, environment);
+    }
+
+    @Override
+    public CompiledStmt visitExpressionStmt(Stmt.Expression stmt) {
+        CompiledExpr expression = compile(stmt.expression);
+        return (interpreter, environment) -> {
+            expression.eval(interpreter, environment);
+            return null;
+        };
+    }
+
+    @Override
+    public CompiledStmt visitFunctionStmt(Stmt.Function stmt) {
+        int slot = stmt.slot;
+        return (interpreter, environment) -> {
+            environment.defineAt(slot, new LoxFunction(stmt, environment, false, false));
+            return null;
+        };
+    }
+
+    @Override
+    public CompiledStmt visitIfStmt(Stmt.If stmt) {
+        CompiledExpr condition = compile(stmt.condition);
+        CompiledStmt thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return (interpreter, environment) -> {
+                if (Interpreter.isTruthy(condition.eval(interpreter, environment))) {
+                    return thenBranch.exec(interpreter, environment);
+                }
+                return null;
+            };
+        }
+
+        CompiledStmt elseBranch = compile(stmt.elseBranch);
+        return (interpreter, environment) -> {
+            if (Interpreter.isTruthy(condition.eval(interpreter, environment))) {
+                return thenBranch.exec(interpreter, environment);
+            }
+            return elseBranch.exec(interpreter, environment);
+        };
+    }
+
+    @Override
+    public CompiledStmt visitPrintStmt(Stmt.Print stmt) {
+        CompiledExpr expression = compile(stmt.expression);
+        return (interpreter, environment) -> {
+            interpreter.print(expression.eval(interpreter, environment));
+            return null;
+        };
+    }
+
+    @Override
+    public CompiledStmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return (interpreter, environment) -> Interpreter.RETURN_NIL;
+        }
+
+        CompiledExpr value = compile(stmt.value);
+        return (interpreter, environment) -> {
+            Object result = value.eval(interpreter, environment);
+            return result == null ? Interpreter.RETURN_NIL : result;
+        };
+    }
+
+    @Override
+    public CompiledStmt visitVarStmt(Stmt.Var stmt) {
+        // 函数体中的声明都是局部变量
+        int slot = stmt.slot;
+        if (stmt.initializer == null) {
+            return (interpreter, environment) -> {
+                environment.defineAt(slot, null);
+                return null;
+            };
+        }
+
+        CompiledExpr initializer = compile(stmt.initializer);
+        return (interpreter, environment) -> {
+            environment.defineAt(slot, initializer.eval(interpreter, environment));
+            return null;
+        };
+    }
+
+    @Override
+    public CompiledStmt visitWhileStmt(Stmt.While stmt) {
+        CompiledExpr condition = compile(stmt.condition);
+        CompiledStmt body = compile(stmt.body);
+        Token end = stmt.end;
+        return (interpreter, environment) -> {
+            Budget budget = interpreter.budget;
+            while (Interpreter.isTruthy(condition.eval(interpreter, environment))) {
+                Object result = body.exec(interpreter, environment);
+                if (result != null) return result;
+                if (budget.step()) throw new RuntimeError(end, budget.message());
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public CompiledExpr visitAssignExpr(Expr.Assign expr) {
+        CompiledExpr value = compile(expr.value);
+        Token name = expr.name;
+        int depth = expr.depth;
+        int slot = expr.slot;
+
+        if (depth == Expr.GLOBAL) {
+            return (interpreter, environment) -> {
+                Object result = value.eval(interpreter, environment);
+                interpreter.globals.assignGlobal(slot, name, result);
+                return result;
+            };
+        }
+
+        return (interpreter, environment) -> {
+            Object result = value.eval(interpreter, environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        };
+    }
+
+    @Override
+    public CompiledExpr visitBinaryExpr(Expr.Binary expr) {
+        if (expr.numeric) return arithmetic(expr);
+        if (expr.left.numeric && expr.right.numeric) return comparison(expr);
+
+        CompiledExpr left = compile(expr.left);
+        CompiledExpr right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case BANG_EQUAL:
+                return (interpreter, environment) -> !Interpreter.isEqual(
+                        left.eval(interpreter, environment),
+                        right.eval(interpreter, environment));
+            case EQUAL_EQUAL:
+                return (interpreter, environment) -> Interpreter.isEqual(
+                        left.eval(interpreter, environment),
+                        right.eval(interpreter, environment));
+            case GREATER:
+                return (interpreter, environment) -> {
+                    Object a = left.eval(interpreter, environment);
+                    Object b = right.eval(interpreter, environment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a > (double) b;
+                };
+            case GREATER_EQUAL:
+                return (interpreter, environment) -> {
+                    Object a = left.eval(interpreter, environment);
+                    Object b = right.eval(interpreter, environment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a >= (double) b;
+                };
+            case LESS:
+                return (interpreter, environment) -> {
+                    Object a = left.eval(interpreter, environment);
+                    Object b = right.eval(interpreter, environment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a < (double) b;
+                };
+            case LESS_EQUAL:
+                return (interpreter, environment) -> {
+                    Object a = left.eval(interpreter, environment);
+                    Object b = right.eval(interpreter, environment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a <= (double) b;
+                };
+            case PLUS:
+                return (interpreter, environment) -> {
+                    Object a = left.eval(interpreter, environment);
+                    Object b = right.eval(interpreter, environment);
+                    if (a instanceof Double && b instanceof Double) {
+                        return Interpreter.box((double) a + (double) b);
+                    }
+
+                    if (a instanceof String && b instanceof String) {
+                        return interpreter.concatenate((String) a, (String) b);
+                    }
+
+                    throw new RuntimeError(operator,
+                            "Operands must be two numbers or two strings.");
+                };
+        }
+
+        // Parser 不会生成其他二元运算符
+        throw new IllegalStateException("Unexpected operator " + operator.type);
+    }
+
+    // 结果一定是数字的二元运算：两边都是数字表达式时全程使用 double，否则先求值再检查类型
+    private CompiledNumber arithmetic(Expr.Binary expr) {
+        Token operator = expr.operator;
+
+        if (expr.left.numeric && expr.right.numeric) {
+            CompiledNumber left = (CompiledNumber) compile(expr.left);
+            CompiledNumber right = (CompiledNumber) compile(expr.right);
+            switch (operator.type) {
+                case PLUS:
+                    return (interpreter, environment) ->
+                            left.evalNumber(interpreter, environment) +
+                            right.evalNumber(interpreter, environment);
+                case MINUS:
+                    return (interpreter, environment) ->
+                            left.evalNumber(interpreter, environment) -
+                            right.evalNumber(interpreter, environment);
+                case STAR:
+                    return (interpreter, environment) ->
+                            left.evalNumber(interpreter, environment) *
+                            right.evalNumber(interpreter, environment);
+                default:
+                    return (interpreter, environment) ->
+                            left.evalNumber(interpreter, environment) /
+                            right.evalNumber(interpreter, environment);
+            }
+        }
+
+        CompiledExpr left = compile(expr.left);
+        CompiledExpr right = compile(expr.right);
+        switch (operator.type) {
+            case MINUS:
+                return (interpreter, environment) -> {
+                    Object a = left.eval(interpreter, environment);
+                    Object b = right.eval(interpreter, environment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a - (double) b;
+                };
+            case STAR:
+                return (interpreter, environment) -> {
+                    Object a = left.eval(interpreter, environment);
+                    Object b = right.eval(interpreter, environment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a * (double) b;
+                };
+            default:
+                return (interpreter, environment) -> {
+                    Object a = left.eval(interpreter, environment);
+                    Object b = right.eval(interpreter, environment);
+                    Interpreter.checkNumberOperands(operator, a, b);
+                    return (double) a / (double) b;
+                };
+        }
+    }
+
+    // 两边都是数字表达式的比较，不装箱操作数
+    private CompiledExpr comparison(Expr.Binary expr) {
+        CompiledNumber left = (CompiledNumber) compile(expr.left);
+        CompiledNumber right = (CompiledNumber) compile(expr.right);
+
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+                return (interpreter, environment) ->
+                        left.evalNumber(interpreter, environment) !=
+                        right.evalNumber(interpreter, environment);
+            case EQUAL_EQUAL:
+                return (interpreter, environment) ->
+                        left.evalNumber(interpreter, environment) ==
+                        right.evalNumber(interpreter, environment);
+            case GREATER:
+                return (interpreter, environment) ->
+                        left.evalNumber(interpreter, environment) >
+                        right.evalNumber(interpreter, environment);
+            case GREATER_EQUAL:
+                return (interpreter, environment) ->
+                        left.evalNumber(interpreter, environment) >=
+                        right.evalNumber(interpreter, environment);
+            case LESS:
+                return (interpreter, environment) ->
+                        left.evalNumber(interpreter, environment) <
+                        right.evalNumber(interpreter, environment);
+            case LESS_EQUAL:
+                return (interpreter, environment) ->
+                        left.evalNumber(interpreter, environment) <=
+                        right.evalNumber(interpreter, environment);
+        }
+
+        // Parser 不会生成其他二元运算符
+        throw new IllegalStateException("Unexpected operator " + expr.operator.type);
+    }
+
+    @Override
+    public CompiledExpr visitCallExpr(Expr.Call expr) {
+        CompiledExpr[] arguments = new CompiledExpr[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token paren = expr.paren;
+
+        if (expr.callee instanceof Expr.Get) {
+            return invoke((Expr.Get) expr.callee, arguments, paren);
+        }
+
+        CompiledExpr callee = compile(expr.callee);
+        return (interpreter, environment) -> call(interpreter, environment,
+                callee.eval(interpreter, environment), arguments, paren);
+    }
+
+    // obj.method(...)：与解释器一样先查找方法，再以 obj 作为 this 直接调用，不创建绑定方法
+    private CompiledExpr invoke(Expr.Get get, CompiledExpr[] arguments, Token paren) {
+        CompiledExpr object = compile(get.object);
+        Token name = get.name;
+
+        return (interpreter, environment) -> {
+            Object value = object.eval(interpreter, environment);
+            if (!(value instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have properties.");
+            }
+
+            LoxInstance instance = (LoxInstance) value;
+            PropertyCache entry = PropertyCache.lookup(interpreter.caches, get, instance);
+            if (entry.index >= 0) {
+                return call(interpreter, environment,
+                        instance.fields[entry.index], arguments, paren);
+            }
+
+            return call(interpreter, environment, entry.method, instance,
+                    arguments, paren);
+        };
+    }
+
+    private static Object call(Interpreter interpreter, Environment environment,
+                               Object function, CompiledExpr[] arguments,
+                               Token paren) {
+        // 与解释器相同：Lox 函数和有初始化方法的类不创建参数列表
+        if (function instanceof LoxFunction) {
+            LoxFunction callee = (LoxFunction) function;
+            return call(interpreter, environment, callee, callee.receiver,
+                    arguments, paren);
+        }
+
+        if (function instanceof LoxClass &&
+            ((LoxClass) function).initializer != null) {
+            LoxInstance instance = new LoxInstance((LoxClass) function);
+            interpreter.budget.allocate(Budget.objectBytes(instance.fields.length));
+            call(interpreter, environment, instance.klass.initializer,
+                    instance, arguments, paren);
+            return instance;
+        }
+
+        List<Object> values = evaluate(interpreter, environment, arguments);
+
+        if (!(function instanceof LoxCallable)) {
+            throw new RuntimeError(paren,
+                    "Can only call functions and classes.");
+        }
+
+        LoxCallable callable = (LoxCallable) function;
+        Interpreter.checkArity(paren, callable, values.size());
+        return callable.call(interpreter, values);
+    }
+
+    // 参数直接求值到被调用函数的环境槽位中
+    private static Object call(Interpreter interpreter, Environment environment,
+                               LoxFunction function, LoxInstance instance,
+                               CompiledExpr[] arguments, Token paren) {
+        Environment frame = function.frame(instance, arguments.length);
+        for (CompiledExpr argument : arguments) {
+            frame.define(argument.eval(interpreter, environment));
+        }
+
+        Interpreter.checkArity(paren, function, arguments.length);
+        return interpreter.callFunction(paren, function, instance, frame);
+    }
+
+    private static List<Object> evaluate(Interpreter interpreter,
+                                         Environment environment,
+                                         CompiledExpr[] arguments) {
+        List<Object> values = new ArrayList<>(arguments.length);
+        for (CompiledExpr argument : arguments) {
+            values.add(argument.eval(interpreter, environment));
+        }
+        return values;
+    }
+
+    @Override
+    public CompiledExpr visitGetExpr(Expr.Get expr) {
+        CompiledExpr object = compile(expr.object);
+        Token name = expr.name;
+        return (interpreter, environment) -> {
+            Object instance = object.eval(interpreter, environment);
+            if (instance instanceof LoxInstance) {
+                return PropertyCache.get(interpreter.caches, expr, (LoxInstance) instance);
+            }
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        };
+    }
+
+    @Override
+    public CompiledExpr visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public CompiledExpr visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (expr.numeric) {
+            double number = (double) value;
+            return new CompiledNumber() {
+                @Override
+                public double evalNumber(Interpreter interpreter, Environment environment) {
+                    return number;
+                }
+
+                // 常量已经装箱，不必再经过 Interpreter.box
+                @Override
+                public Object eval(Interpreter interpreter, Environment environment) {
+                    return value;
+                }
+            };
+        }
+        return (interpreter, environment) -> value;
+    }
+
+    @Override
+    public CompiledExpr visitLogicalExpr(Expr.Logical expr) {
+        CompiledExpr left = compile(expr.left);
+        CompiledExpr right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return (interpreter, environment) -> {
+                Object value = left.eval(interpreter, environment);
+                if (Interpreter.isTruthy(value)) return value;
+                return right.eval(interpreter, environment);
+            };
+        }
+
+        return (interpreter, environment) -> {
+            Object value = left.eval(interpreter, environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.eval(interpreter, environment);
+        };
+    }
+
+    @Override
+    public CompiledExpr visitSetExpr(Expr.Set expr) {
+        CompiledExpr object = compile(expr.object);
+        CompiledExpr value = compile(expr.value);
+        Token name = expr.name;
+        return (interpreter, environment) -> {
+            Object instance = object.eval(interpreter, environment);
+            if (!(instance instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.eval(interpreter, environment);
+            PropertyCache.set(interpreter.caches, expr, (LoxInstance) instance, result);
+            return result;
+        };
+    }
+
+    @Override
+    public CompiledExpr visitSuperExpr(Expr.Super expr) {
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int thisDepth = expr.thisDepth;
+        Token method = expr.method;
+        return (interpreter, environment) -> {
+            LoxClass superclass = (LoxClass) environment.getAt(depth, slot);
+            LoxInstance object = (LoxInstance) environment.getAt(thisDepth, 0);
+            LoxFunction function = superclass.findMethod(method.lexeme());
+
+            if (function == null) {
+                throw new RuntimeError(method,
+                        "Undefined property '" + method.lexeme() + "'.");
+            }
+
+            return function.bind(object);
+        };
+    }
+
+    @Override
+    public CompiledExpr visitThisExpr(Expr.This expr) {
+        if (expr.depth == Expr.GLOBAL) {
+            Token keyword = expr.keyword;
+            return (interpreter, environment) -> interpreter.globals.get(keyword);
+        }
+        return variable(expr.keyword, expr.depth, expr.slot);
+    }
+
+    @Override
+    public CompiledExpr visitUnaryExpr(Expr.Unary expr) {
+        CompiledExpr right = compile(expr.right);
+        Token operator = expr.operator;
+
+        if (operator.type == TokenType.BANG) {
+            return (interpreter, environment) ->
+                    !Interpreter.isTruthy(right.eval(interpreter, environment));
+        }
+
+        if (expr.right.numeric) {
+            CompiledNumber operand = (CompiledNumber) right;
+            return (CompiledNumber) (interpreter, environment) ->
+                    -operand.evalNumber(interpreter, environment);
+        }
+
+        return (CompiledNumber) (interpreter, environment) -> {
+            Object value = right.eval(interpreter, environment);
+            Interpreter.checkNumberOperand(operator, value);
+            return -(double) value;
+        };
+    }
+
+    @Override
+    public CompiledExpr visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr.depth, expr.slot);
+    }
+
+    // 按 Resolver 写入的距离生成变量读取，最常见的当前作用域和外层作用域单独处理
+    private CompiledExpr variable(Token name, int depth, int slot) {
+        switch (depth) {
+            case Expr.GLOBAL:
+                return (interpreter, environment) ->
+                        interpreter.globals.getGlobal(slot, name);
+            case 0:
+                return (interpreter, environment) -> environment.getAt(0, slot);
+            case 1:
+                return (interpreter, environment) ->
+                        environment.enclosing.getAt(0, slot);
+            default:
+                return (interpreter, environment) -> environment.getAt(depth, slot);
+        }
+    }
+}
@@ -1,42 +1,71 @@
 package com.szu.lox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 // 解释器 ===> 解释AST
 class Interpreter implements Expr.Visitor<Object>,
-                             Stmt.Visitor<Void> {
+                             Stmt.Visitor<Object> {
     // 全局变量环境
     final Environment globals = new Environment();
     // 当前作用域环境
     private Environment environment = globals;
-    // 记录当前作用域中使用的变量距离声明的变量所在的作用域之间的间隔数
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // 程序输出，每个解释器独立持有
+    private final Printer out;
+    private final Diagnostics diagnostics;
+    // 函数被调用多少次后编译函数体，不大于 0 时不编译
+    int compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+    static final int DEFAULT_COMPILE_THRESHOLD = 50;
+    // Lox 函数调用的最大嵌套深度，超过时报告运行时错误，不依赖 Java 的 StackOverflowError
+    int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+    static final int DEFAULT_MAX_CALL_DEPTH = 1024;
+    private int callDepth = 0;
+    // 执行预算，默认不限制
+    Budget budget = new Budget(0, 0, 0);
+    // 属性访问点的内联缓存，下标为 Resolver 分配的 site
+    PropertyCache[] caches = new PropertyCache[0];
+
+    // 语句的执行结果：正常执行完返回 null，执行到 return 时返回函数的返回值
+    // 返回 nil 时使用 RETURN_NIL 与正常执行完区分，由 LoxFunction 还原为 null
+    static final Object RETURN_NIL = new Object();
+
+    // 本地函数---clock时钟函数，字节码虚拟机也使用它
+    static final LoxCallable CLOCK = new LoxCallable() {
+        @Override
+        public int arity() { return 0; }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return (double)System.currentTimeMillis() / 1000.0;
+        }
+
+        @Override
+        public String toString() { return "<native fn>"; }
+    };
 
     // 在全局环境中添加一个本地函数---clock时钟函数
-    Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() { return 0; }
-
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
-            }
+    Interpreter(Printer out, Diagnostics diagnostics) {
+        this.out = out;
+        this.diagnostics = diagnostics;
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
+        globals.define("clock", CLOCK);
+    }
+
+    // 为新解析的程序准备内联缓存，sites 为本会话至今分配的 site 总数
+    void reserveSites(int sites) {
+        if (sites > caches.length) caches = Arrays.copyOf(caches, sites);
     }
 
     void interpret(Expr expression) {
         try {
             Object value = evaluate(expression);
-            System.out.println(stringify(value));
+            out.println(stringify(value));
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            out.flush();
+            diagnostics.runtimeError(error);
         }
     }
 
@@ -46,7 +75,8 @@ class Interpreter implements Expr.Visitor<Object>,
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            out.flush();
+            diagnostics.runtimeError(error);
         }
     }
 
@@ -54,22 +84,21 @@ class Interpreter implements Expr.Visitor<Object>,
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Object execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
-
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    // 执行到 return 语句时停止执行后面的语句，把返回值交给外层
+    Object executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
+                Object result = execute(statement);
+                if (result != null) return result;
             }
+            return null;
         } finally {
             this.environment = previous;
         }
@@ -77,14 +106,24 @@ class Interpreter implements Expr.Visitor<Object>,
 
     // 解析块语句树
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.scoped) {
+            budget.allocate(Budget.objectBytes(stmt.size));
+            return executeBlock(stmt.statements,
+                    new Environment(environment, stmt.size));
+        }
+
+        // 块中的变量没有被闭包捕获，直接放在当前环境中，不创建新环境
+        for (Stmt statement : stmt.statements) {
+            Object result = execute(statement);
+            if (result != null) return result;
+        }
         return null;
     }
 
     // 解析类声明语句
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Object visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -95,21 +134,19 @@ class Interpreter implements Expr.Visitor<Object>,
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
-
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
+            environment = new Environment(environment, 1);
             environment.define("super", superclass);
         }
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
             LoxFunction function = new LoxFunction(method, environment,
-                    method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+                    method.name.lexeme().equals("init"), true);
+            methods.put(method.name.lexeme(), function);
         }
 
-        LoxClass klass = new LoxClass(stmt.name.lexeme,
+        LoxClass klass = new LoxClass(stmt.name.lexeme(),
                 (LoxClass)superclass, methods);
 
         // 将环境重置回去
@@ -117,76 +154,97 @@ class Interpreter implements Expr.Visitor<Object>,
             environment = environment.enclosing;
         }
 
-        environment.assign(stmt.name, klass);
+        // 方法只在调用时才查找类名，因此可以在创建完类之后再定义类名
+        define(stmt.slot, stmt.name, klass);
         return null;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
         return null;
     }
 
     // 解析 Fun 声明语句
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        LoxFunction function = new LoxFunction(stmt, environment, false, false);
         // 给函数所在作用域环境设置函数变量
-        environment.define(stmt.name.lexeme, function);
+        define(stmt.slot, stmt.name, function);
         return null;
     }
 
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
         return null;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Object visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        print(value);
         return null;
     }
 
+    void print(Object value) {
+        out.println(stringify(value));
+    }
+
     // 解析 return 语句
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
+    public Object visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return RETURN_NIL;
 
-        throw new Return(value);
+        Object value = evaluate(stmt.value);
+        return value == null ? RETURN_NIL : value;
     }
 
     // 解释变量声明语句
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
         // 将变量添加到作用域中
-        environment.define(stmt.name.lexeme, value);
+        define(stmt.slot, stmt.name, value);
         return null;
     }
 
+    // 全局变量按名字定义，局部变量写入 Resolver 分配的槽位
+    private void define(int slot, Token name, Object value) {
+        if (slot == Expr.GLOBAL) {
+            environment.define(name.lexeme(), value);
+        } else {
+            environment.defineAt(slot, value);
+        }
+    }
+
     // 解释变量求值
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        // 变量距离与槽位由 Resolver 直接写在节点上
+        if (expr.depth != Expr.GLOBAL) {
+            return environment.getAt(expr.depth, expr.slot);
+        }
+        return globals.getGlobal(expr.slot, expr.name);
     }
 
     // 解析 while 循环
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Object visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            Object result = execute(stmt.body);
+            if (result != null) return result;
+            // 循环回边消耗一步预算
+            if (budget.step()) throw new RuntimeError(stmt.end, budget.message());
         }
 
         return null;
@@ -196,12 +254,11 @@ class Interpreter implements Expr.Visitor<Object>,
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            // 将变量key-value写入作用域中
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth != Expr.GLOBAL) {
+            // 将变量写入作用域中对应的槽位
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
-            globals.assign(expr.name, value);
+            globals.assignGlobal(expr.slot, expr.name, value);
         }
         return value;
     }
@@ -209,8 +266,44 @@ class Interpreter implements Expr.Visitor<Object>,
     // 解析函数调用
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            return invoke(expr, (Expr.Get) expr.callee);
+        }
+
         // 获得被调用者对象
-        Object callee = evaluate(expr.callee);
+        return call(expr, evaluate(expr.callee));
+    }
+
+    // 解析 obj.method(...) 调用：先查找方法，再以 obj 作为 this 直接调用，不创建绑定方法
+    private Object invoke(Expr.Call expr, Expr.Get get) {
+        Object object = evaluate(get.object);
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(get.name,
+                    "Only instances have properties.");
+        }
+
+        LoxInstance instance = (LoxInstance) object;
+        PropertyCache entry = PropertyCache.lookup(caches, get, instance);
+        // 字段中保存的可调用对象，按普通调用处理
+        if (entry.index >= 0) return call(expr, instance.fields[entry.index]);
+
+        return call(expr, entry.method, instance);
+    }
+
+    private Object call(Expr.Call expr, Object callee) {
+        // Lox 函数和有初始化方法的类：参数直接求值到被调用函数的环境中
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callee;
+            return call(expr, function, function.receiver);
+        }
+
+        if (callee instanceof LoxClass &&
+            ((LoxClass) callee).initializer != null) {
+            LoxInstance instance = new LoxInstance((LoxClass) callee);
+            budget.allocate(Budget.objectBytes(instance.fields.length));
+            call(expr, instance.klass.initializer, instance);
+            return instance;
+        }
 
         // 获得参数列表
         List<Object> arguments = new ArrayList<>();
@@ -228,22 +321,56 @@ class Interpreter implements Expr.Visitor<Object>,
         LoxCallable function = (LoxCallable) callee;
 
         // 检查调用函数传入的参数数量是否与声明时的参数数量一致
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " +
-                    function.arity() + " arguments but got " +
-                    arguments.size() + ".");
-        }
+        checkArity(expr.paren, function, arguments.size());
 
         // 调用函数，并返回结果
         return function.call(this, arguments);
     }
 
+    // 以 instance 作为 this 调用 Lox 函数，参数按顺序放入新环境的槽位，不创建参数列表
+    private Object call(Expr.Call expr, LoxFunction function,
+                        LoxInstance instance) {
+        Environment frame = function.frame(instance, expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            frame.define(evaluate(argument));
+        }
+
+        checkArity(expr.paren, function, expr.arguments.size());
+        return callFunction(expr.paren, function, instance, frame);
+    }
+
+    // 在参数已经放好的环境中执行 Lox 函数，记录调用深度
+    Object callFunction(Token paren, LoxFunction function, LoxInstance instance,
+                        Environment frame) {
+        if (callDepth == maxCallDepth) {
+            throw new RuntimeError(paren, "Stack overflow.");
+        }
+
+        callDepth++;
+        try {
+            return function.execute(this, instance, frame);
+        } catch (StackOverflowError error) {
+            // 运行线程的栈不足以到达调用深度上限（例如不是引擎提供的线程），同样报告运行时错误
+            throw new RuntimeError(paren, "Stack overflow.");
+        } finally {
+            callDepth--;
+        }
+    }
+
+    static void checkArity(Token paren, LoxCallable function, int argCount) {
+        if (argCount != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                    function.arity() + " arguments but got " +
+                    argCount + ".");
+        }
+    }
+
     // 解析属性访问、方法调用
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return PropertyCache.get(caches, expr, (LoxInstance) object);
         }
 
         throw new RuntimeError(expr.name,
@@ -265,22 +392,32 @@ class Interpreter implements Expr.Visitor<Object>,
     // 一元表达式
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        if (expr.numeric) return box(evaluateNumber(expr));
 
-        switch (expr.operator.type) {
-            case BANG:
-                return !isTruthy(right);
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double) right;
-        }
-
-        return null;
+        // 只剩下逻辑非
+        return !isTruthy(evaluate(expr.right));
     }
 
     // 二元表达式
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        // 结果为数字的运算直接以 double 计算，整棵算术表达式只在最后装箱一次
+        if (expr.numeric) return box(evaluateNumber(expr));
+
+        // 两边都是数字的比较不需要装箱操作数
+        if (expr.left.numeric && expr.right.numeric) {
+            double left = evaluateNumber(expr.left);
+            double right = evaluateNumber(expr.right);
+            switch (expr.operator.type) {
+                case BANG_EQUAL: return left != right;
+                case EQUAL_EQUAL: return left == right;
+                case GREATER: return left > right;
+                case GREATER_EQUAL: return left >= right;
+                case LESS: return left < right;
+                case LESS_EQUAL: return left <= right;
+            }
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
@@ -300,31 +437,69 @@ class Interpreter implements Expr.Visitor<Object>,
             case LESS_EQUAL:
                 checkNumberOperands(expr.operator, left, right);
                 return (double) left <= (double) right;
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
+                    return box((double) left + (double) right);
                 }
 
                 if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
+                    return concatenate((String) left, (String) right);
                 }
 
                 throw new RuntimeError(expr.operator,
                         "Operands must be two numbers or two strings.");
+        }
 
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left / (double) right;
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
+        // 减、乘、除总是数字运算，已在上面处理
+        return null;
+    }
+
+    // 拼接字符串，结果计入内存预算
+    String concatenate(String left, String right) {
+        budget.allocate(Budget.stringBytes(left.length() + right.length()));
+        return left + right;
+    }
 
+    // 对 Resolver 标记为数字的表达式求值，中间结果不装箱
+    private double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return (double) ((Expr.Literal) expr).value;
         }
 
-        return null;
+        if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping) expr).expression);
+        }
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (unary.right.numeric) return -evaluateNumber(unary.right);
+
+            Object right = evaluate(unary.right);
+            checkNumberOperand(unary.operator, right);
+            return -(double) right;
+        }
+
+        Expr.Binary binary = (Expr.Binary) expr;
+        double left;
+        double right;
+        if (binary.left.numeric && binary.right.numeric) {
+            left = evaluateNumber(binary.left);
+            right = evaluateNumber(binary.right);
+        } else {
+            // 与解释器的求值顺序一致：先对两边求值，再检查类型
+            Object leftValue = evaluate(binary.left);
+            Object rightValue = evaluate(binary.right);
+            checkNumberOperands(binary.operator, leftValue, rightValue);
+            left = (double) leftValue;
+            right = (double) rightValue;
+        }
+
+        switch (binary.operator.type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            default: return left / right;
+        }
     }
 
     // 解释逻辑运算 OR 和 AND
@@ -352,25 +527,24 @@ class Interpreter implements Expr.Visitor<Object>,
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
+        PropertyCache.set(caches, expr, (LoxInstance) object, value);
         return value;
     }
 
     // 解释super表达式
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
         LoxClass superclass = (LoxClass) environment.getAt(
-                distance, "super");
-        // this环境刚好在super环境里面
+                expr.depth, expr.slot);
+        // this 在方法环境的槽位 0 中
         LoxInstance object = (LoxInstance) environment.getAt(
-                distance - 1, "this");
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+                expr.thisDepth, 0);
+        LoxFunction method = superclass.findMethod(expr.method.lexeme());
 
         // 加入检查，找不到报错
         if (method == null) {
             throw new RuntimeError(expr.method,
-                    "Undefined property '" + expr.method.lexeme + "'.");
+                    "Undefined property '" + expr.method.lexeme() + "'.");
         }
 
         return method.bind(object);
@@ -378,47 +552,67 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        if (expr.depth != Expr.GLOBAL) {
+            return environment.getAt(expr.depth, expr.slot);
+        }
+        return globals.get(expr.keyword);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
+    // 常用的小整数预先装箱，运算结果落在这个范围内时不分配新的 Double
+    private static final int SMALL_MIN = -128;
+    private static final int SMALL_MAX = 1023;
+    private static final Double[] SMALL_NUMBERS = new Double[SMALL_MAX - SMALL_MIN + 1];
+
+    static {
+        for (int i = 0; i < SMALL_NUMBERS.length; i++) {
+            SMALL_NUMBERS[i] = (double) (i + SMALL_MIN);
         }
     }
 
+    // 装箱数字运算的结果
+    static Object box(double value) {
+        int small = (int) value;
+        // -0.0 与 0 相等，但打印结果不同，不能使用缓存
+        if (small == value && small >= SMALL_MIN && small <= SMALL_MAX &&
+            (small != 0 || Double.doubleToRawLongBits(value) == 0L)) {
+            return SMALL_NUMBERS[small - SMALL_MIN];
+        }
+        return value;
+    }
+
     // 判断是否为Double类型，不是则异常
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
     // 判断二元表达式左右两边是否为Double类型，不是则异常
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
     // 判断是否为真。false和nil是假的，其他的都是真的
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
+        // Double.equals 认为 NaN 等于 NaN，数字按 IEEE 754 比较
+        if (a instanceof Double && b instanceof Double) {
+            return (double) a == (double) b;
+        }
 
         return a.equals(b);
     }
 
     // 结果呈现
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -3,19 +3,26 @@ package com.szu.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Lox {
-    private static Interpreter interpreter;
-    // 记录是否发生错误
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    private static LoxSession session;
+    // 在栈大小已知的线程中运行，深递归报告 "Stack overflow." 而不是 StackOverflowError
+    private static ExecutorService runner;
 
     public static void main(String[] args) throws IOException {
-        interpreter = new Interpreter();
+        // 通过 -Dlox.backend=vm 使用字节码虚拟机
+        LoxEngine.Backend backend = LoxEngine.Backend.valueOf(
+                System.getProperty("lox.backend", "interpreter").toUpperCase());
+        LoxEngine engine = LoxEngine.builder().backend(backend).build();
+        session = engine.newSession();
+        runner = Executors.newSingleThreadExecutor(engine.threadFactory());
         if (args.length > 1) {
             System.out.println("Usage: jlox [script]");
             System.exit(64);
@@ -27,20 +34,22 @@ public class Lox {
     }
 
     // 第三方使用接口
-    public static void runApi(String source) throws IOException {
-        interpreter = new Interpreter();
-        run(source);
+    public static void runApi(String source) {
+        runApi(source, System.out, System.err);
+    }
 
-        hadError = false;
-        hadRuntimeError = false;
+    // 第三方使用接口，每次调用都使用独立的会话，可以并发调用
+    public static void runApi(String source, PrintStream out, PrintStream err) {
+        LoxEngine.builder().build().newSession(out, err).run(source);
     }
 
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        LoxSession.Status status =
+                run(new String(bytes, Charset.defaultCharset()));
 
-        if (hadError) System.exit(65);
-        if (hadRuntimeError) System.exit(70);
+        if (status == LoxSession.Status.COMPILE_ERROR) System.exit(65);
+        if (status == LoxSession.Status.RUNTIME_ERROR) System.exit(70);
     }
 
     private static void runPrompt() throws IOException {
@@ -52,58 +61,20 @@ public class Lox {
             String line = reader.readLine();
             if (line == null) break;
             run(line);
-            hadError = false;
         }
     }
 
-    private static void run(String source) {
-        // 扫描器 ===> Token
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-
-        // 解析器 ===> AST
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-
-        // Expr expression = parser.parse();
-
-        if (hadError) return;
-
-        // System.out.println(new AstPrinter().print(expression));
-
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-
-        if (hadError) return;
-
-        interpreter.interpret(statements);
-    }
-
-    // 错误处理
-    static void error(int line, String message) {
-        report(line, "", message);
-    }
-
-    private static void report(int line, String where,
-                               String message) {
-        System.err.println(
-            "[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
-    }
-
-    // 打印错误
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+    private static LoxSession.Status run(String source) {
+        try {
+            return runner.submit(() -> session.run(source)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
         }
     }
-
-    // 打印运行时错误
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-            "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
-    }
 }
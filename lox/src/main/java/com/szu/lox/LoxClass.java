@@ -1,5 +1,6 @@
 package com.szu.lox;
 
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -7,26 +8,28 @@ class LoxClass implements LoxCallable {
     // 类名
     final String name;
     final LoxClass superclass;
-    // 存放方法
+    // 存放方法，包括从超类继承的方法；方法名是 SymbolTable 中的唯一字符串，按引用查找
     private final Map<String, LoxFunction> methods;
+    // 初始化方法，没有时为 null
+    final LoxFunction initializer;
+    // 实例的初始隐藏类，同一个类的实例从这里开始添加字段
+    final Shape rootShape = new Shape();
+    // 实例中见过的最多字段数，用于新实例预先分配字段数组
+    int fieldCount = 0;
 
     LoxClass(String name, LoxClass superclass,
              Map<String, LoxFunction> methods) {
         this.superclass = superclass;
         this.name = name;
-        this.methods = methods;
+        // 继承的方法复制到子类中，查找方法时不需要遍历超类链
+        this.methods = new IdentityHashMap<>();
+        if (superclass != null) this.methods.putAll(superclass.methods);
+        this.methods.putAll(methods);
+        this.initializer = this.methods.get("init");
     }
 
     LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
-
-        return null;
+        return methods.get(name);
     }
 
     @Override
@@ -38,10 +41,10 @@ class LoxClass implements LoxCallable {
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
+        interpreter.budget.allocate(Budget.objectBytes(fieldCount));
 
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
 
         return instance;
@@ -49,7 +52,6 @@ class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
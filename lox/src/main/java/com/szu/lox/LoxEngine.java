@@ -0,0 +1,262 @@
+package com.szu.lox;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Lox 引擎：保存不可变的运行配置，用于创建相互隔离的会话
+// 引擎本身不持有运行状态（程序缓存是线程安全的），可以被多个线程共享
+// 配置了程序存储的引擎持有文件和文件锁，不再使用时应当关闭
+public class LoxEngine implements AutoCloseable {
+    // 执行后端
+    public enum Backend {
+        // 遍历语法树的解释器
+        INTERPRETER,
+        // 编译为字节码后在栈式虚拟机上运行
+        VM
+    }
+
+    // 解释器中每层 Lox 调用占用的 Java 栈空间的估算，函数体中嵌套很深的表达式会占用更多
+    private static final long STACK_BYTES_PER_CALL = 8 * 1024;
+    private static final long STACK_BYTES_BASE = 1024 * 1024;
+
+    private final Backend backend;
+    private final int compileThreshold;
+    private final long timeLimit;
+    private final long instructionLimit;
+    private final long memoryLimit;
+    private final int maxCallDepth;
+    private final long threadStackSize;
+    private final PrintStream out;
+    private final PrintStream err;
+    // 预先定义到每个会话全局环境中的变量
+    private final Map<String, Object> globals;
+    // 解析完成的程序的缓存，没有启用时为 null
+    private final ProgramCache programCache;
+
+    private LoxEngine(Builder builder) {
+        this.backend = builder.backend;
+        this.compileThreshold = builder.compileThreshold;
+        this.timeLimit = builder.timeLimit;
+        this.instructionLimit = builder.instructionLimit;
+        this.memoryLimit = builder.memoryLimit;
+        this.maxCallDepth = builder.maxCallDepth;
+        this.threadStackSize = builder.threadStackSize > 0
+                ? builder.threadStackSize
+                : STACK_BYTES_BASE + STACK_BYTES_PER_CALL * maxCallDepth;
+        this.out = builder.out;
+        this.err = builder.err;
+        this.globals = Collections.unmodifiableMap(
+                new LinkedHashMap<>(builder.globals));
+        this.programCache = builder.programCacheSize > 0
+                ? new ProgramCache(builder.programCacheSize, programStore(builder))
+                : null;
+    }
+
+    // 程序中全局变量的下标依赖新会话中预先定义的全局变量，存储按它们的名字区分
+    // 目录已被其他进程或引擎使用时只在内存中缓存
+    private ProgramStore programStore(Builder builder) {
+        if (builder.programStoreDirectory == null) return null;
+        List<String> predefined = newSession(out, err).globals().globalNames(0);
+        return ProgramStore.open(builder.programStoreDirectory, predefined,
+                builder.programStoreSize);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    // 运行会话的线程的栈大小，默认按调用深度上限估算，使深递归先报告 "Stack overflow."
+    public long threadStackSize() {
+        return threadStackSize;
+    }
+
+    // 创建栈大小为 threadStackSize() 的守护线程，会话应当在这样的线程中运行
+    public ThreadFactory threadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(null, runnable,
+                    "lox-" + count.incrementAndGet(), threadStackSize);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // 程序缓存，可以读取命中、未命中和淘汰次数；没有启用时返回 null
+    public ProgramCache programCache() {
+        return programCache;
+    }
+
+    // 释放程序存储的文件和锁；关闭后仍然可以创建和运行会话，只是不再读写磁盘
+    @Override
+    public void close() {
+        if (programCache != null) programCache.close();
+    }
+
+    // 使用引擎配置的输出创建会话
+    public LoxSession newSession() {
+        return newSession(out, err);
+    }
+
+    // 使用指定的输出创建会话，适合每个请求各自收集输出的场景
+    public LoxSession newSession(PrintStream out, PrintStream err) {
+        Diagnostics diagnostics = new Diagnostics(err);
+        Budget budget = new Budget(timeLimit, instructionLimit, memoryLimit);
+        Printer printer = new Printer(out);
+        if (backend == Backend.VM) {
+            VM vm = new VM(printer, diagnostics);
+            vm.budget = budget;
+            vm.maxCallDepth = maxCallDepth;
+            for (Map.Entry<String, Object> global : globals.entrySet()) {
+                vm.globals.define(global.getKey(), global.getValue());
+            }
+            return new LoxSession(null, vm, diagnostics, budget, printer, err, programCache);
+        }
+
+        Interpreter interpreter = new Interpreter(printer, diagnostics);
+        interpreter.compileThreshold = compileThreshold;
+        interpreter.budget = budget;
+        interpreter.maxCallDepth = maxCallDepth;
+        for (Map.Entry<String, Object> global : globals.entrySet()) {
+            interpreter.globals.define(global.getKey(), global.getValue());
+        }
+        return new LoxSession(interpreter, null, diagnostics, budget, printer, err,
+                programCache);
+    }
+
+    public static class Builder {
+        private Backend backend = Backend.INTERPRETER;
+        private int compileThreshold = Interpreter.DEFAULT_COMPILE_THRESHOLD;
+        private long timeLimit = 0;
+        private long instructionLimit = 0;
+        private long memoryLimit = 0;
+        private int maxCallDepth = Interpreter.DEFAULT_MAX_CALL_DEPTH;
+        private long threadStackSize = 0;
+        private long programCacheSize = 0;
+        private Path programStoreDirectory = null;
+        private long programStoreSize = 0;
+        private PrintStream out = System.out;
+        private PrintStream err = System.err;
+        private final Map<String, Object> globals = new LinkedHashMap<>();
+
+        private Builder() {}
+
+        // 执行后端，默认使用解释器
+        public Builder backend(Backend backend) {
+            this.backend = backend;
+            return this;
+        }
+
+        // 解释器中函数被调用多少次后编译函数体，不大于 0 时只使用解释器
+        public Builder compileThreshold(int calls) {
+            this.compileThreshold = calls;
+            return this;
+        }
+
+        // 每次运行的时间限制（毫秒），超时后以运行时错误结束，不大于 0 时不限制
+        public Builder timeLimit(long millis) {
+            this.timeLimit = millis;
+            return this;
+        }
+
+        // 每次运行最多执行的步数（循环次数与函数调用次数之和），不大于 0 时不限制
+        public Builder instructionLimit(long steps) {
+            this.instructionLimit = steps;
+            return this;
+        }
+
+        // 每次运行最多分配的内存（字节，按环境、实例和拼接的字符串估算），不大于 0 时不限制
+        public Builder memoryLimit(long bytes) {
+            this.memoryLimit = bytes;
+            return this;
+        }
+
+        // 函数调用的最大嵌套深度，超过时以 "Stack overflow." 运行时错误结束
+        // 解释器每层调用占用若干 Java 栈帧，调大时运行线程需要足够的栈空间
+        public Builder maxCallDepth(int depth) {
+            this.maxCallDepth = depth;
+            return this;
+        }
+
+        // threadFactory() 创建的线程的栈大小（字节），不大于 0 时按调用深度上限估算
+        public Builder threadStackSize(long bytes) {
+            this.threadStackSize = bytes;
+            return this;
+        }
+
+        // 程序缓存容量（缓存的源码总字符数），会话第一次运行的源码与缓存中的相同时直接执行
+        // 缓存的语法树在会话之间共享；不大于 0 时不缓存
+        public Builder programCacheSize(long chars) {
+            this.programCacheSize = chars;
+            return this;
+        }
+
+        // 把解析完成的程序同时保存到目录中的文件里，重启后仍然可以使用；bytes 为文件大小上限
+        // 需要同时启用 programCacheSize；目录无法使用时 build() 抛出 UncheckedIOException
+        public Builder programStore(Path directory, long bytes) {
+            this.programStoreDirectory = directory;
+            this.programStoreSize = bytes;
+            return this;
+        }
+
+        // 程序输出
+        public Builder output(PrintStream out) {
+            this.out = out;
+            return this;
+        }
+
+        // 错误输出
+        public Builder errors(PrintStream err) {
+            this.err = err;
+            return this;
+        }
+
+        // 定义全局变量，值只能是 nil、布尔值、数字或字符串
+        public Builder global(String name, Object value) {
+            globals.put(name, toLoxValue(name, value));
+            return this;
+        }
+
+        // 定义本地函数
+        public Builder nativeFunction(String name, int arity,
+                                      Function<List<Object>, Object> body) {
+            globals.put(name, new LoxCallable() {
+                @Override
+                public int arity() { return arity; }
+
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments) {
+                    return toLoxValue(name, body.apply(arguments));
+                }
+
+                @Override
+                public String toString() { return "<native fn>"; }
+            });
+            return this;
+        }
+
+        public LoxEngine build() {
+            return new LoxEngine(this);
+        }
+
+        private static Object toLoxValue(String name, Object value) {
+            if (value == null || value instanceof Boolean ||
+                value instanceof Double || value instanceof String) {
+                return value;
+            }
+
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+
+            throw new IllegalArgumentException("Global '" + name +
+                    "' has unsupported type " + value.getClass().getName() + ".");
+        }
+    }
+}
@@ -8,25 +8,35 @@ class LoxFunction implements LoxCallable {
     // 父环境
     private final Environment closure;
     private final boolean isInitializer;
+    // 是否为类的方法，方法环境的槽位 0 存放 this
+    private final boolean isMethod;
+    // 绑定的实例，只有把方法当作值取出时才会绑定
+    final LoxInstance receiver;
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    LoxFunction(Stmt.Function declaration, Environment closure,
+                boolean isInitializer, boolean isMethod) {
+        this(declaration, closure, isInitializer, isMethod, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure,
+                        boolean isInitializer, boolean isMethod,
+                        LoxInstance receiver) {
         this.isInitializer = isInitializer;
+        this.isMethod = isMethod;
         this.closure = closure;
         this.declaration = declaration;
+        this.receiver = receiver;
     }
 
     LoxFunction bind(LoxInstance instance) {
-        // 此时的closure指的是class所在的环境
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        // 返回一个闭包处理过的函数
-        return new LoxFunction(declaration, environment,
-                isInitializer);
+        // 此时的closure指的是class所在的环境，调用时再把 this 放入方法环境
+        return new LoxFunction(declaration, closure, isInitializer,
+                isMethod, instance);
     }
 
     @Override
     public String toString() {
-        return "<fn " + declaration.name.lexeme + ">";
+        return "<fn " + declaration.name.lexeme() + ">";
     }
 
     @Override
@@ -36,23 +46,54 @@ class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    // 以 instance 作为 this 调用方法，obj.method() 直接调用时不需要先创建绑定方法
+    Object invoke(Interpreter interpreter, LoxInstance instance,
+                  List<Object> arguments) {
+        Environment environment = frame(instance, arguments.size());
+        for (Object argument : arguments) {
+            environment.define(argument);
+        }
+
+        return execute(interpreter, instance, environment);
+    }
+
+    // 创建调用时的环境，方法的槽位 0 存放 this，调用者再把参数依次放入后面的槽位
+    // 函数体中没有被捕获的块也把变量放在这个环境中，大小由 Resolver 计算
+    Environment frame(LoxInstance instance, int argCount) {
+        Environment environment = new Environment(closure,
+                Math.max(declaration.size, argCount + 1));
+        if (isMethod) environment.define(instance);
+        return environment;
+    }
+
+    // 在参数已经放好的环境中执行函数体
+    Object execute(Interpreter interpreter, LoxInstance instance,
+                   Environment environment) {
+        // 函数入口消耗一步预算，调用环境计入内存
+        Budget budget = interpreter.budget;
+        budget.allocate(Budget.objectBytes(declaration.size));
+        if (budget.step()) {
+            throw new RuntimeError(declaration.name, budget.message());
         }
 
-        // 如果捕获到 Return 异常，说明函数返回
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            // 如果是初始化init()函数，则返回this
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
+        // 调用次数达到阈值后编译函数体，之后的调用都执行编译结果
+        // 调用次数和编译结果记录在声明节点上，同一个声明产生的所有函数对象共用
+        CompiledStmt compiled = declaration.compiled;
+        if (compiled == null && interpreter.compileThreshold > 0 &&
+            ++declaration.calls == interpreter.compileThreshold) {
+            compiled = FunctionCompiler.compile(declaration);
+            declaration.compiled = compiled;
         }
 
-        if (isInitializer) return closure.getAt(0, "this");
+        Object result = compiled != null
+                ? compiled.exec(interpreter, environment)
+                : interpreter.executeBlock(declaration.body, environment);
 
-        return null;
+        // 如果是初始化init()函数，则返回this
+        if (isInitializer) return instance;
+        return result == Interpreter.RETURN_NIL ? null : result;
     }
 }
@@ -1,32 +1,33 @@
 package com.szu.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+// 实例的属性读写经过 PropertyCache，按访问点缓存 Shape 对应的字段下标或方法
 class LoxInstance {
     // 存放所属类引用
-    private LoxClass klass;
-    // 存储实例属性 key-value
-    private final Map<String, Object> fields = new HashMap<>();
+    final LoxClass klass;
+    // 实例的隐藏类，描述字段在 fields 中的下标
+    Shape shape;
+    // 按 shape 中的下标存放字段的值
+    Object[] fields;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = new Object[klass.fieldCount];
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    // 按下标给字段赋值，next 与当前 Shape 不同时表示添加新字段
+    void setField(Shape next, int index, Object value) {
+        if (next != shape) {
+            if (index >= fields.length) {
+                fields = Arrays.copyOf(fields, Math.max(index * 2, 4));
+            }
+            shape = next;
+            // 之后创建的实例直接分配足够的空间
+            if (klass.fieldCount < shape.size()) klass.fieldCount = shape.size();
         }
-
-        LoxFunction method = klass.findMethod(name.lexeme);
-        if (method != null) return method.bind(this);
-
-        throw new RuntimeError(name,
-            "Undefined property '" + name.lexeme + "'.");
-    }
-
-    void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        fields[index] = value;
     }
 
     @Override
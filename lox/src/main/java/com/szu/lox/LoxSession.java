@@ -0,0 +1,153 @@
+package com.szu.lox;
+
+import java.io.PrintStream;
+import java.util.List;
+
+// Lox 会话：持有自己的解释器（或字节码虚拟机）、错误诊断和输出
+// 会话之间没有共享状态，不同会话可以在不同线程中并发运行，但同一个会话不能被并发使用
+public class LoxSession {
+    public enum Status {
+        OK,
+        COMPILE_ERROR,
+        RUNTIME_ERROR
+    }
+
+    // 两者只有一个不为 null，取决于引擎的执行后端
+    private final Interpreter interpreter;
+    private final VM vm;
+    private final Diagnostics diagnostics;
+    // 执行预算，解释器或虚拟机持有同一个对象
+    private final Budget budget;
+    private final Printer out;
+    private final PrintStream err;
+    // 引擎的程序缓存，没有启用时为 null
+    private final ProgramCache cache;
+    // 已运行过程序：缓存的程序按全新会话的全局变量表解析，只在第一次运行时使用
+    private boolean used = false;
+    // 本会话至今分配的属性访问点总数
+    private int sites = 0;
+
+    LoxSession(Interpreter interpreter, VM vm, Diagnostics diagnostics,
+               Budget budget, Printer out, PrintStream err, ProgramCache cache) {
+        this.interpreter = interpreter;
+        this.vm = vm;
+        this.diagnostics = diagnostics;
+        this.budget = budget;
+        this.out = out;
+        this.err = err;
+        this.cache = cache;
+    }
+
+    // 运行一段源码，全局变量在同一会话的多次运行之间保留
+    // 运行线程被中断时，程序在下一次检查预算时以 "Execution cancelled." 运行时错误结束
+    public Status run(String source) {
+        diagnostics.hadError = false;
+        diagnostics.hadRuntimeError = false;
+        // 时间和步数限制针对每次运行
+        budget.start();
+
+        try {
+            execute(source);
+        } catch (StackOverflowError error) {
+            // 调用之外的深层嵌套（例如解析层层嵌套的表达式）耗尽了运行线程的栈
+            out.flush();
+            diagnostics.runtimeError("Stack overflow.");
+        } finally {
+            out.flush();
+            err.flush();
+        }
+
+        if (diagnostics.hadError) return Status.COMPILE_ERROR;
+        if (diagnostics.hadRuntimeError) return Status.RUNTIME_ERROR;
+        return Status.OK;
+    }
+
+    private void execute(String source) {
+        Environment globals = globals();
+        boolean cacheable = cache != null && !used;
+        used = true;
+
+        Program program = cacheable ? cache.get(source) : null;
+        if (program != null) {
+            // 按解析时的顺序分配全局变量的下标
+            for (String name : program.globals) {
+                globals.indexOf(name);
+            }
+
+            if (vm != null && program.function == null) {
+                // 从磁盘读入的程序只有语法树，编译为字节码后放回缓存
+                ObjFunction function = new Compiler(diagnostics, globals)
+                        .compile(program.statements);
+                if (diagnostics.hadError) return;
+
+                program = new Program(program.statements, function,
+                        program.globals, program.sites);
+                cache.put(source, program);
+            }
+        } else {
+            program = compile(source, globals);
+            if (program == null) return;
+            if (cacheable) cache.put(source, program);
+        }
+        sites = program.sites;
+
+        if (vm != null) {
+            vm.interpret(program.function);
+            return;
+        }
+
+        interpreter.reserveSites(program.sites);
+        interpreter.interpret(program.statements);
+    }
+
+    // 编译源码，有编译错误时返回 null
+    private Program compile(String source, Environment globals) {
+        int firstGlobal = globals.globalCount();
+
+        // 扫描器 ===> Token ===> 解析器 ===> AST，解析器按需从扫描器取 Token
+        Scanner scanner = new Scanner(source, diagnostics);
+        Parser parser = new Parser(scanner, diagnostics);
+        List<Stmt> statements = parser.parse();
+
+        if (diagnostics.hadError) return null;
+
+        Resolver resolver = new Resolver(diagnostics, globals, sites);
+        resolver.resolveProgram(statements);
+
+        if (diagnostics.hadError) return null;
+
+        if (vm != null) {
+            // 编译器 ===> 字节码
+            ObjFunction function = new Compiler(diagnostics, globals).compile(statements);
+            if (diagnostics.hadError) return null;
+
+            return new Program(statements, function,
+                    globals.globalNames(firstGlobal), resolver.sites());
+        }
+
+        return new Program(statements, null,
+                globals.globalNames(firstGlobal), resolver.sites());
+    }
+
+    Environment globals() {
+        return vm != null ? vm.globals : interpreter.globals;
+    }
+
+    // 最近一次运行消耗的步数（循环次数与函数调用次数之和）
+    public long instructions() {
+        return budget.steps();
+    }
+
+    // 最近一次运行估算分配的内存（字节）
+    public long allocatedBytes() {
+        return budget.allocated();
+    }
+
+    public boolean hadError() {
+        return diagnostics.hadError;
+    }
+
+    public boolean hadRuntimeError() {
+        return diagnostics.hadRuntimeError;
+    }
+}
@@ -0,0 +1,17 @@
+package com.szu.lox;
+
+// 绑定了接收者的方法，只有把方法当作值取出时才会创建
+class ObjBoundMethod {
+    final Object receiver;
+    final ObjClosure method;
+
+    ObjBoundMethod(Object receiver, ObjClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
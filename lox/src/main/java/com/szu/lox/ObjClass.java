@@ -0,0 +1,25 @@
+package com.szu.lox;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// 字节码虚拟机中的类
+// 继承时超类的方法会被复制到子类中，查找方法不需要遍历超类链
+class ObjClass {
+    final String name;
+    // 方法名是 SymbolTable 中的唯一字符串，按引用查找
+    final Map<String, ObjClosure> methods = new IdentityHashMap<>();
+    // 实例的初始隐藏类
+    final Shape rootShape = new Shape();
+    // 实例中见过的最多字段数，用于新实例预先分配字段数组
+    int fieldCount = 0;
+
+    ObjClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,24 @@
+package com.szu.lox;
+
+// 字节码编译得到的函数
+class ObjFunction {
+    final String name;
+    int arity = 0;
+    int upvalueCount = 0;
+    // 函数执行时需要的最大栈空间，包括槽位 0、参数和局部变量
+    int maxStack = 1;
+    final Chunk chunk = new Chunk();
+    // 编译结束后由常量表生成：数字常量在 constants 中为 VM.NUMBER，值存放在 numbers 中
+    Object[] constants;
+    double[] numbers;
+
+    ObjFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
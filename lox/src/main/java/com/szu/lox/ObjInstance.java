@@ -0,0 +1,36 @@
+package com.szu.lox;
+
+import java.util.Arrays;
+
+// 字节码虚拟机中的实例，字段布局由隐藏类 Shape 描述
+class ObjInstance {
+    final ObjClass klass;
+    Shape shape;
+    // 按 shape 中的下标存放字段的值
+    Object[] fields;
+
+    ObjInstance(ObjClass klass) {
+        this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = new Object[klass.fieldCount];
+    }
+
+    void set(String name, Object value) {
+        int index = shape.indexOf(name);
+        if (index < 0) {
+            index = shape.size();
+            shape = shape.with(name);
+            if (index == fields.length) {
+                fields = Arrays.copyOf(fields, Math.max(index * 2, 4));
+            }
+            // 之后创建的实例直接分配足够的空间
+            if (klass.fieldCount < shape.size()) klass.fieldCount = shape.size();
+        }
+        fields[index] = value;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
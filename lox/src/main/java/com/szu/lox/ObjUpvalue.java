@@ -0,0 +1,14 @@
+package com.szu.lox;
+
+// 上值：被闭包捕获的变量
+// 变量仍在栈上时 location 为其栈槽位；变量离开作用域后关闭，location 为 -1，值移入 closed
+class ObjUpvalue {
+    int location;
+    Object closed;
+    // 按槽位从高到低排列的打开上值链表
+    ObjUpvalue next;
+
+    ObjUpvalue(int location) {
+        this.location = location;
+    }
+}
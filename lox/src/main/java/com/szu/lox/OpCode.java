@@ -0,0 +1,51 @@
+package com.szu.lox;
+
+// 字节码指令
+// 操作数紧跟在指令之后：单字节操作数为常量下标、局部变量槽位、参数个数等，跳转偏移和全局变量下标为两个字节
+final class OpCode {
+    static final byte CONSTANT = 0;       // 常量下标
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;      // 槽位
+    static final byte SET_LOCAL = 6;      // 槽位
+    static final byte GET_GLOBAL = 7;     // 全局变量下标，两个字节
+    static final byte DEFINE_GLOBAL = 8;  // 全局变量下标，两个字节
+    static final byte SET_GLOBAL = 9;     // 全局变量下标，两个字节
+    static final byte GET_UPVALUE = 10;   // 上值下标
+    static final byte SET_UPVALUE = 11;   // 上值下标
+    static final byte GET_PROPERTY = 12;  // 属性名常量下标
+    static final byte SET_PROPERTY = 13;  // 属性名常量下标
+    static final byte GET_SUPER = 14;     // 方法名常量下标
+    static final byte EQUAL = 15;
+    static final byte GREATER = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte LESS = 18;
+    static final byte LESS_EQUAL = 19;
+    static final byte ADD = 20;
+    static final byte SUBTRACT = 21;
+    static final byte MULTIPLY = 22;
+    static final byte DIVIDE = 23;
+    static final byte NOT = 24;
+    static final byte NEGATE = 25;
+    static final byte PRINT = 26;
+    static final byte JUMP = 27;          // 向前跳转偏移
+    static final byte JUMP_IF_FALSE = 28; // 向前跳转偏移，不弹出条件
+    static final byte LOOP = 29;          // 向后跳转偏移
+    static final byte CALL = 30;          // 参数个数
+    // 查找方法，栈顶的接收者变为 [方法, 接收者]；找到的是字段时变为 [字段值, NOT_METHOD]
+    static final byte GET_METHOD = 31;    // 方法名常量下标
+    // 在超类中查找方法，栈顶的 [this, 超类] 变为 [方法, this]
+    static final byte GET_SUPER_METHOD = 32; // 方法名常量下标
+    // 调用 GET_METHOD / GET_SUPER_METHOD 得到的方法，不需要创建绑定方法对象
+    static final byte CALL_METHOD = 33;   // 参数个数
+    static final byte CLOSURE = 34;       // 函数常量下标，之后每个上值两个字节：是否局部变量、下标
+    static final byte CLOSE_UPVALUE = 35;
+    static final byte RETURN = 36;
+    static final byte CLASS = 37;         // 类名常量下标
+    static final byte INHERIT = 38;
+    static final byte METHOD = 39;        // 方法名常量下标
+
+    private OpCode() {}
+}
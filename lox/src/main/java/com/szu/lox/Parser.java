@@ -9,12 +9,17 @@ import static com.szu.lox.TokenType.*;
 // 解析器 => 语法树AST
 class Parser {
     private static class ParseError extends RuntimeException {}
-    private final List<Token> tokens;
-    // 与词法分析器类似，current为下一个消费对象，当前消费对象是previous()
-    private int current = 0;
+    // 按需从扫描器取词法单元，只保留前瞻的一个和刚消费的一个
+    private final Scanner scanner;
+    private final Diagnostics diagnostics;
+    // 与词法分析器类似，current为下一个消费对象，当前消费对象是previous
+    private Token current;
+    private Token previous;
 
-    Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    Parser(Scanner scanner, Diagnostics diagnostics) {
+        this.scanner = scanner;
+        this.diagnostics = diagnostics;
+        this.current = scanner.next();
     }
 
     // 语句解析
@@ -111,8 +116,9 @@ class Parser {
                         new Stmt.Expression(increment)));
         }
 
-        if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        if (condition == null) condition = new Expr.Literal(null, true);
+        // 循环体的最后一个 Token，用于字节码编译器报告循环体过大
+        body = new Stmt.While(condition, body, previous());
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -173,7 +179,7 @@ class Parser {
         consume(RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(condition, body, previous());
     }
 
     private Stmt expressionStatement() {
@@ -356,12 +362,12 @@ class Parser {
 
     // 解析字面量
     private Expr primary() {
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(TRUE)) return new Expr.Literal(true);
-        if (match(NIL)) return new Expr.Literal(null);
+        if (match(FALSE)) return new Expr.Literal(previous(), false);
+        if (match(TRUE)) return new Expr.Literal(previous(), true);
+        if (match(NIL)) return new Expr.Literal(previous(), null);
 
         if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(previous(), previous().literal);
         }
 
         if (match(SUPER)) {
@@ -416,8 +422,11 @@ class Parser {
 
     // 前进
     private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+        if (!isAtEnd()) {
+            previous = current;
+            current = scanner.next();
+        }
+        return previous;
     }
 
     // 判断是否是文件结尾
@@ -427,17 +436,17 @@ class Parser {
 
     // 前瞻，不消费
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     // 后瞻，不消费
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     // 解析报错
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        diagnostics.error(token, message);
         return new ParseError();
     }
 
@@ -0,0 +1,31 @@
+package com.szu.lox;
+
+import java.io.PrintStream;
+
+// 程序输出缓冲：print 只是追加到缓冲区，积累到一定大小或运行结束时才写入输出流，
+// 不必每次打印都经过 PrintStream 的同步写入
+class Printer {
+    private static final int FLUSH_SIZE = 8192;
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final PrintStream out;
+    private final StringBuilder buffer = new StringBuilder();
+
+    Printer(PrintStream out) {
+        this.out = out;
+    }
+
+    void println(String text) {
+        buffer.append(text).append(NEWLINE);
+        if (buffer.length() >= FLUSH_SIZE) flush();
+    }
+
+    // 写入输出流；报告运行时错误前也要先写入，错误输出和程序输出可能是同一个流
+    void flush() {
+        if (buffer.length() > 0) {
+            out.append(buffer);
+            buffer.setLength(0);
+        }
+        out.flush();
+    }
+}
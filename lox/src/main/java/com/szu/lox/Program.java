@@ -0,0 +1,25 @@
+package com.szu.lox;
+
+import java.util.Collections;
+import java.util.List;
+
+// 解析完成的程序：语法树和 Resolver 写入节点的槽位、距离等信息，字节码后端还有编译得到的函数
+// 运行时只读，同一引擎的会话可以共享；节点上唯一会在运行时写入的是 Stmt.Function 的调用计数和
+// 编译结果，计数只用来决定何时编译，编译结果不依赖会话，并发写入也不影响正确性
+final class Program {
+    // 解析完成的语句，解释器直接执行，写入磁盘时也使用它
+    final List<Stmt> statements;
+    // 字节码后端编译得到的顶层函数；解释器后端和刚从磁盘读入的程序为 null
+    final ObjFunction function;
+    // 程序在全局变量表中新分配的变量名，按分配顺序；在新会话中按同样的顺序分配，下标才与解析结果一致
+    final List<String> globals;
+    // 会话中到这个程序为止分配的属性访问点总数
+    final int sites;
+
+    Program(List<Stmt> statements, ObjFunction function, List<String> globals, int sites) {
+        this.statements = Collections.unmodifiableList(statements);
+        this.function = function;
+        this.globals = Collections.unmodifiableList(globals);
+        this.sites = sites;
+    }
+}
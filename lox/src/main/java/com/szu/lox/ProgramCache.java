@@ -0,0 +1,102 @@
+package com.szu.lox;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// 按源码缓存解析完成的程序，重复提交相同的代码时跳过扫描、解析、静态分析和编译
+// 以源码字符串为键：先按哈希值查找，命中后再比较完整源码，哈希碰撞不会取到别的程序
+// 容量按源码总长度计算，语法树和字节码的大小与源码长度大致成正比；超出时淘汰最久没有使用的程序
+// 配置了 ProgramStore 时，内存中没有的程序再到磁盘上查找，新解析的程序同时写入磁盘
+public final class ProgramCache {
+    // 缓存的源码总长度上限（字符数）
+    private final long capacity;
+    // 磁盘上的存储，没有配置时为 null
+    private final ProgramStore store;
+    private final LinkedHashMap<String, Program> programs =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long loads = 0;
+
+    ProgramCache(long capacity, ProgramStore store) {
+        this.capacity = capacity;
+        this.store = store;
+    }
+
+    // 读写磁盘时不持有缓存的锁，一个大程序的解码或写入不会阻塞其他会话；
+    // 并发时同一个程序可能被读入或写入两次，ProgramStore 会跳过已经保存的源码
+    Program get(String source) {
+        synchronized (this) {
+            Program program = programs.get(source);
+            if (program != null) {
+                hits++;
+                return program;
+            }
+            if (store == null) {
+                misses++;
+                return null;
+            }
+        }
+
+        Program program = store.load(source);
+        synchronized (this) {
+            if (program == null) {
+                misses++;
+                return null;
+            }
+            loads++;
+            remember(source, program);
+            return program;
+        }
+    }
+
+    void put(String source, Program program) {
+        if (store != null) store.save(source, program);
+        synchronized (this) {
+            remember(source, program);
+        }
+    }
+
+    private void remember(String source, Program program) {
+        if (source.length() > capacity) return;
+
+        if (programs.put(source, program) == null) size += source.length();
+
+        Iterator<Map.Entry<String, Program>> eldest = programs.entrySet().iterator();
+        while (size > capacity) {
+            size -= eldest.next().getKey().length();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    // 关闭磁盘上的存储，内存中的缓存仍然可以使用
+    void close() {
+        if (store != null) store.close();
+    }
+
+    // 当前缓存的程序数量
+    public synchronized int entries() {
+        return programs.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    // 内存中没有、从磁盘上读入的次数
+    public synchronized long loads() {
+        return loads;
+    }
+}
@@ -0,0 +1,614 @@
+package com.szu.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 解析完成的程序的二进制格式，ProgramStore 用它把程序写到磁盘上
+// 语法树按前序遍历写出：每个节点先写一个字节的类型标记，再依次写构造器字段和 Resolver 写入的字段；
+// 整数使用变长编码，字符串集中放在开头的字符串表中，节点里只写下标
+// 运行时才写入的字段（内联缓存、调用计数、编译结果）不保存
+// 语法树节点或 Resolver 写入的字段有变化时，需要同步修改这里并增加 ProgramStore.VERSION
+final class ProgramCodec {
+    private static final int NULL = 0;
+
+    // 表达式节点的类型标记
+    private static final int ASSIGN = 1;
+    private static final int BINARY = 2;
+    private static final int CALL = 3;
+    private static final int GET = 4;
+    private static final int GROUPING = 5;
+    private static final int LITERAL = 6;
+    private static final int LOGICAL = 7;
+    private static final int SET = 8;
+    private static final int SUPER = 9;
+    private static final int THIS = 10;
+    private static final int UNARY = 11;
+    private static final int VARIABLE = 12;
+
+    // 语句节点的类型标记
+    private static final int BLOCK = 1;
+    private static final int CLASS = 2;
+    private static final int EXPRESSION = 3;
+    private static final int FUNCTION = 4;
+    private static final int IF = 5;
+    private static final int PRINT = 6;
+    private static final int RETURN = 7;
+    private static final int VAR = 8;
+    private static final int WHILE = 9;
+
+    // 字面量值和 Token 字面量的类型标记
+    private static final int NIL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private ProgramCodec() {}
+
+    static byte[] encode(Program program) {
+        Writer writer = new Writer();
+        writer.writeStrings(program.globals);
+        writer.writeInt(program.sites);
+        writer.writeStatements(program.statements);
+        return writer.finish();
+    }
+
+    // 格式不对时抛出 IllegalArgumentException；字节码后端需要再编译一次
+    static Program decode(ByteBuffer buffer) {
+        try {
+            Reader reader = new Reader(buffer);
+            List<String> globals = reader.readStrings();
+            int sites = reader.readInt();
+            List<Stmt> statements = reader.readStatements();
+            if (buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes in program.");
+            }
+            return new Program(statements, null, globals, sites);
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalArgumentException) throw e;
+            // 缓冲区越界、下标越界或类型不符都说明数据已损坏
+            throw new IllegalArgumentException("Malformed program.", e);
+        }
+    }
+
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        // 字符串表在前，读取节点时所有字符串都已可用
+        byte[] finish() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.size() + 64);
+            writeInt(out, strings.size());
+            for (String string : strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writeInt(out, bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+            out.write(body.toByteArray(), 0, body.size());
+            return out.toByteArray();
+        }
+
+        void writeStatements(List<Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt statement : statements) {
+                write(statement);
+            }
+        }
+
+        void writeStrings(List<String> values) {
+            writeInt(values.size());
+            for (String value : values) {
+                writeString(value);
+            }
+        }
+
+        private void write(Stmt stmt) {
+            if (stmt == null) {
+                body.write(NULL);
+                return;
+            }
+            stmt.accept(this);
+        }
+
+        private void write(Expr expr) {
+            if (expr == null) {
+                body.write(NULL);
+                return;
+            }
+            expr.accept(this);
+        }
+
+        private void writeExprs(List<? extends Expr> exprs) {
+            writeInt(exprs.size());
+            for (Expr expr : exprs) {
+                write(expr);
+            }
+        }
+
+        private void writeExpr(int tag, Expr expr) {
+            body.write(tag);
+            body.write(expr.numeric ? 1 : 0);
+        }
+
+        // 类型加一写出，0 表示 null（for 循环省略条件时生成的字面量没有 Token）
+        private void write(Token token) {
+            if (token == null) {
+                writeInt(NULL);
+                return;
+            }
+            writeInt(token.type.ordinal() + 1);
+            writeString(token.lexeme());
+            writeValue(token.literal);
+            writeInt(token.line);
+        }
+
+        private void writeValue(Object value) {
+            if (value == null) {
+                body.write(NIL);
+            } else if (value instanceof Boolean) {
+                body.write((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                body.write(NUMBER);
+                long bits = Double.doubleToRawLongBits((Double) value);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    body.write((int) (bits >>> shift));
+                }
+            } else {
+                body.write(STRING);
+                writeString((String) value);
+            }
+        }
+
+        private void writeString(String value) {
+            Integer index = strings.get(value);
+            if (index == null) {
+                index = strings.size();
+                strings.put(value, index);
+            }
+            writeInt(index);
+        }
+
+        private void writeBoolean(boolean value) {
+            body.write(value ? 1 : 0);
+        }
+
+        void writeInt(int value) {
+            writeInt(body, value);
+        }
+
+        // 变长编码，先做 zigzag 变换，-1（Expr.GLOBAL）这样的小负数也只占一个字节
+        private static void writeInt(ByteArrayOutputStream out, int value) {
+            int bits = (value << 1) ^ (value >> 31);
+            while ((bits & ~0x7F) != 0) {
+                out.write((bits & 0x7F) | 0x80);
+                bits >>>= 7;
+            }
+            out.write(bits);
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            writeExpr(ASSIGN, expr);
+            write(expr.name);
+            write(expr.value);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            writeExpr(BINARY, expr);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            writeExpr(CALL, expr);
+            write(expr.callee);
+            write(expr.paren);
+            writeExprs(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            writeExpr(GET, expr);
+            write(expr.object);
+            write(expr.name);
+            writeInt(expr.site);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            writeExpr(GROUPING, expr);
+            write(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            writeExpr(LITERAL, expr);
+            write(expr.token);
+            writeValue(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            writeExpr(LOGICAL, expr);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            writeExpr(SET, expr);
+            write(expr.object);
+            write(expr.name);
+            write(expr.value);
+            writeInt(expr.site);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            writeExpr(SUPER, expr);
+            write(expr.keyword);
+            write(expr.method);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            writeInt(expr.thisDepth);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            writeExpr(THIS, expr);
+            write(expr.keyword);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            writeExpr(UNARY, expr);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            writeExpr(VARIABLE, expr);
+            write(expr.name);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            body.write(BLOCK);
+            writeStatements(stmt.statements);
+            writeBoolean(stmt.captured);
+            writeBoolean(stmt.scoped);
+            writeInt(stmt.size);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            body.write(CLASS);
+            write(stmt.name);
+            write(stmt.superclass);
+            writeInt(stmt.methods.size());
+            for (Stmt.Function method : stmt.methods) {
+                write(method);
+            }
+            writeInt(stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            body.write(EXPRESSION);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            body.write(FUNCTION);
+            write(stmt.name);
+            writeInt(stmt.params.size());
+            for (Token param : stmt.params) {
+                write(param);
+            }
+            writeStatements(stmt.body);
+            writeInt(stmt.slot);
+            writeInt(stmt.size);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            body.write(IF);
+            write(stmt.condition);
+            write(stmt.thenBranch);
+            write(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            body.write(PRINT);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            body.write(RETURN);
+            write(stmt.keyword);
+            write(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            body.write(VAR);
+            write(stmt.name);
+            write(stmt.initializer);
+            writeInt(stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            body.write(WHILE);
+            write(stmt.condition);
+            write(stmt.body);
+            write(stmt.end);
+            return null;
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer buffer;
+        private final String[] strings;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.strings = new String[readLength()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readLength()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+
+        List<String> readStrings() {
+            int count = readLength();
+            List<String> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(readString());
+            }
+            return values;
+        }
+
+        List<Stmt> readStatements() {
+            int count = readLength();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(readStmt());
+            }
+            return statements;
+        }
+
+        private Stmt readStmt() {
+            int tag = buffer.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case BLOCK: {
+                    Stmt.Block stmt = new Stmt.Block(readStatements());
+                    stmt.captured = readBoolean();
+                    stmt.scoped = readBoolean();
+                    stmt.size = readInt();
+                    return stmt;
+                }
+                case CLASS: {
+                    Token name = readToken();
+                    Expr.Variable superclass = (Expr.Variable) readExpr();
+                    int count = readLength();
+                    List<Stmt.Function> methods = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        methods.add((Stmt.Function) readStmt());
+                    }
+                    Stmt.Class stmt = new Stmt.Class(name, superclass, methods);
+                    stmt.slot = readInt();
+                    return stmt;
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(readExpr());
+                case FUNCTION: {
+                    Token name = readToken();
+                    int count = readLength();
+                    List<Token> params = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        params.add(readToken());
+                    }
+                    Stmt.Function stmt = new Stmt.Function(name, params, readStatements());
+                    stmt.slot = readInt();
+                    stmt.size = readInt();
+                    return stmt;
+                }
+                case IF:
+                    return new Stmt.If(readExpr(), readStmt(), readStmt());
+                case PRINT:
+                    return new Stmt.Print(readExpr());
+                case RETURN:
+                    return new Stmt.Return(readToken(), readExpr());
+                case VAR: {
+                    Stmt.Var stmt = new Stmt.Var(readToken(), readExpr());
+                    stmt.slot = readInt();
+                    return stmt;
+                }
+                case WHILE:
+                    return new Stmt.While(readExpr(), readStmt(), readToken());
+                default:
+                    throw new IllegalArgumentException("Unknown statement tag " + tag + ".");
+            }
+        }
+
+        private Expr readExpr() {
+            int tag = buffer.get();
+            if (tag == NULL) return null;
+
+            boolean numeric = readBoolean();
+            Expr expr;
+            switch (tag) {
+                case ASSIGN: {
+                    Expr.Assign assign = new Expr.Assign(readToken(), readExpr());
+                    assign.depth = readInt();
+                    assign.slot = readInt();
+                    expr = assign;
+                    break;
+                }
+                case BINARY:
+                    expr = new Expr.Binary(readExpr(), readToken(), readExpr());
+                    break;
+                case CALL: {
+                    Expr callee = readExpr();
+                    Token paren = readToken();
+                    int count = readLength();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(readExpr());
+                    }
+                    expr = new Expr.Call(callee, paren, arguments);
+                    break;
+                }
+                case GET: {
+                    Expr.Get get = new Expr.Get(readExpr(), readToken());
+                    get.site = readInt();
+                    expr = get;
+                    break;
+                }
+                case GROUPING:
+                    expr = new Expr.Grouping(readExpr());
+                    break;
+                case LITERAL:
+                    expr = new Expr.Literal(readToken(), readValue());
+                    break;
+                case LOGICAL:
+                    expr = new Expr.Logical(readExpr(), readToken(), readExpr());
+                    break;
+                case SET: {
+                    Expr.Set set = new Expr.Set(readExpr(), readToken(), readExpr());
+                    set.site = readInt();
+                    expr = set;
+                    break;
+                }
+                case SUPER: {
+                    Expr.Super node = new Expr.Super(readToken(), readToken());
+                    node.depth = readInt();
+                    node.slot = readInt();
+                    node.thisDepth = readInt();
+                    expr = node;
+                    break;
+                }
+                case THIS: {
+                    Expr.This node = new Expr.This(readToken());
+                    node.depth = readInt();
+                    node.slot = readInt();
+                    expr = node;
+                    break;
+                }
+                case UNARY:
+                    expr = new Expr.Unary(readToken(), readExpr());
+                    break;
+                case VARIABLE: {
+                    Expr.Variable variable = new Expr.Variable(readToken());
+                    variable.depth = readInt();
+                    variable.slot = readInt();
+                    expr = variable;
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown expression tag " + tag + ".");
+            }
+            expr.numeric = numeric;
+            return expr;
+        }
+
+        private Token readToken() {
+            int type = readInt();
+            if (type == NULL) return null;
+            return readToken(TOKEN_TYPES[type - 1]);
+        }
+
+        private Token readToken(TokenType type) {
+            String lexeme = readString();
+            // 名字与扫描器得到的一样使用唯一的字符串，运行时按引用比较
+            if (type != TokenType.STRING && type != TokenType.NUMBER) lexeme = lexeme.intern();
+            Object literal = readValue();
+            return new Token(type, lexeme, literal, readInt());
+        }
+
+        private Object readValue() {
+            int tag = buffer.get();
+            switch (tag) {
+                case NIL: return null;
+                case TRUE: return Boolean.TRUE;
+                case FALSE: return Boolean.FALSE;
+                case NUMBER: return buffer.getDouble();
+                case STRING: return readString();
+                default:
+                    throw new IllegalArgumentException("Unknown value tag " + tag + ".");
+            }
+        }
+
+        private String readString() {
+            return strings[readInt()];
+        }
+
+        private boolean readBoolean() {
+            return buffer.get() != 0;
+        }
+
+        // 数量和长度不能为负数，也不会超过剩余的字节数
+        private int readLength() {
+            int length = readInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException("Bad length " + length + ".");
+            }
+            return length;
+        }
+
+        private int readInt() {
+            int bits = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get();
+                bits |= (b & 0x7F) << shift;
+                if (b >= 0) return (bits >>> 1) ^ -(bits & 1);
+            }
+            throw new IllegalArgumentException("Malformed integer.");
+        }
+    }
+}
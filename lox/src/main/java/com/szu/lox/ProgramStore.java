@@ -0,0 +1,272 @@
+package com.szu.lox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// 解析完成的程序在磁盘上的存储，进程重启后重复提交的代码仍然不必重新解析
+// 目录中只有一个文件：文件头之后是逐条追加的记录，每条记录为
+//   负载长度、负载的 CRC32、源码的 SHA-256、ProgramCodec 编码的程序
+// 文件头包含格式版本和预定义全局变量的名字：程序中全局变量的下标依赖这两者，不一致时整个文件作废重写
+// 启动时把文件映射到内存并建立索引，之后追加的记录通过文件通道读取
+// 同一个目录只能由一个存储使用：打开时对文件加排他锁，已被其他进程或引擎占用时不能打开
+final class ProgramStore {
+    private static final int MAGIC = 0x4C4F5850;
+    // ProgramCodec 的编码方式、语法树节点或 Resolver 写入的字段变化时加一
+    static final int VERSION = 1;
+    private static final String FILE_NAME = "programs.bin";
+    private static final int DIGEST_BYTES = 32;
+    private static final int RECORD_HEADER_BYTES = 8 + DIGEST_BYTES;
+
+    private final FileChannel channel;
+    // 文件的排他锁，关闭存储时释放
+    private final FileLock lock;
+    // 启动时映射的文件内容，mappedEnd 之后的记录是本次运行追加的
+    private final MappedByteBuffer mapped;
+    private final long mappedEnd;
+    // 源码摘要到记录位置的索引，摘要用 ByteBuffer 包装以便按内容比较
+    private final Map<ByteBuffer, Long> index = new HashMap<>();
+    // 文件大小上限，超过后不再追加；映射的位置是 int，不超过 2GB
+    private final long capacity;
+    private long end;
+    private boolean closed = false;
+
+    // 打开目录中的存储；文件已被占用时返回 null
+    static ProgramStore open(Path directory, List<String> predefined, long capacity) {
+        try {
+            Files.createDirectories(directory);
+            FileChannel channel = FileChannel.open(directory.resolve(FILE_NAME),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // 同一个进程中的另一个存储持有锁
+                lock = null;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            if (lock == null) {
+                channel.close();
+                return null;
+            }
+            return new ProgramStore(channel, lock, predefined, capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 文件不存在、版本或预定义全局变量不一致时重写文件头，丢弃原有的记录
+    private ProgramStore(FileChannel channel, FileLock lock, List<String> predefined,
+                         long capacity) throws IOException {
+        this.channel = channel;
+        this.lock = lock;
+        this.capacity = Math.min(capacity, Integer.MAX_VALUE);
+        try {
+            byte[] header = header(predefined);
+            if (!hasHeader(header)) {
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(header), 0);
+                channel.force(false);
+            }
+
+            end = scan(header.length);
+            if (channel.size() > end) channel.truncate(end);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            mappedEnd = end;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // 读取与源码对应的程序；不存在或记录已损坏时返回 null
+    // 计算摘要、校验和解码都在锁外进行，锁只保护索引和文件读写
+    Program load(String source) {
+        ByteBuffer digest = digest(source);
+        ByteBuffer payload;
+        int checksum;
+        synchronized (this) {
+            if (closed) return null;
+            Long position = index.get(digest);
+            if (position == null) return null;
+
+            try {
+                ByteBuffer header = read(position, 8);
+                int length = header.getInt();
+                checksum = header.getInt();
+                payload = read(position + RECORD_HEADER_BYTES, length);
+            } catch (IOException e) {
+                index.remove(digest);
+                return null;
+            }
+        }
+
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new IllegalArgumentException("Checksum mismatch.");
+            }
+            return ProgramCodec.decode(payload);
+        } catch (IllegalArgumentException e) {
+            // 损坏的记录不再使用，之后重新解析并追加新的记录
+            synchronized (this) {
+                index.remove(digest);
+            }
+            return null;
+        }
+    }
+
+    // 追加程序；已经存在、超过容量或写入失败时什么也不做
+    void save(String source, Program program) {
+        ByteBuffer digest = digest(source);
+        synchronized (this) {
+            if (closed || index.containsKey(digest)) return;
+        }
+
+        byte[] payload = ProgramCodec.encode(program);
+        long size = RECORD_HEADER_BYTES + payload.length;
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate((int) size);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(digest.duplicate());
+        record.put(payload);
+        ((Buffer) record).flip();
+
+        synchronized (this) {
+            // 编码期间其他线程可能已经保存了同一个程序，或者存储已经关闭
+            if (closed || index.containsKey(digest) || end + size > capacity) return;
+
+            try {
+                long position = end;
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+            } catch (IOException e) {
+                return;
+            }
+
+            index.put(digest, end);
+            end += size;
+        }
+    }
+
+    // 释放文件锁并关闭文件；之后读取总是返回 null，保存什么也不做
+    // 映射的内存在映射对象被回收时释放
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        index.clear();
+        try {
+            lock.release();
+        } catch (IOException e) {
+            // 关闭文件时锁同样会被释放
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 存储中的程序数量
+    synchronized int size() {
+        return index.size();
+    }
+
+    // 找出所有完整的记录，返回最后一条完整记录的结尾；
+    // 进程在追加记录时退出会留下不完整的结尾，超过容量的部分也不再使用
+    private long scan(int headerLength) throws IOException {
+        long position = headerLength;
+        long limit = Math.min(channel.size(), capacity);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (position + RECORD_HEADER_BYTES <= limit) {
+            ((Buffer) header).clear();
+            while (header.hasRemaining()) {
+                channel.read(header, position + header.position());
+            }
+            int length = header.getInt(0);
+            long next = position + RECORD_HEADER_BYTES + length;
+            if (length < 0 || next > limit) break;
+
+            byte[] digest = new byte[DIGEST_BYTES];
+            for (int i = 0; i < DIGEST_BYTES; i++) {
+                digest[i] = header.get(8 + i);
+            }
+            index.put(ByteBuffer.wrap(digest), position);
+            position = next;
+        }
+        return position;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (position + length <= mappedEnd) {
+            // 通过 Buffer 调用 position/limit/flip，编译结果在 Java 8 上也能运行
+            ByteBuffer slice = mapped.duplicate();
+            ((Buffer) slice).position((int) position);
+            ((Buffer) slice).limit((int) position + length);
+            return slice.slice();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+        }
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    private boolean hasHeader(byte[] header) throws IOException {
+        if (channel.size() < header.length) return false;
+
+        ByteBuffer existing = ByteBuffer.allocate(header.length);
+        while (existing.hasRemaining()) {
+            if (channel.read(existing, existing.position()) < 0) return false;
+        }
+        ((Buffer) existing).flip();
+        return existing.equals(ByteBuffer.wrap(header));
+    }
+
+    // 魔数、格式版本和预定义全局变量的名字
+    private static byte[] header(List<String> predefined) {
+        byte[] names = String.join("\n", predefined).getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(12 + names.length)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(names.length)
+                .put(names)
+                .array();
+    }
+
+    private static ByteBuffer digest(String source) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            return ByteBuffer.wrap(sha.digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.szu.lox;
+
+// 属性访问点的内联缓存，按实例的 Shape 缓存查找结果
+// 缓存保存在解释器的数组中，下标是 Resolver 为 Expr.Get / Expr.Set 分配的 site；
+// Shape 和方法属于某个会话，不放在语法树上，语法树可以在会话之间共享
+// 每个类有自己的根 Shape，所以 Shape 相同意味着类也相同，方法查找的结果同样可以缓存
+// 缓存项组成不可变的链表，一个访问点最多缓存 MAX_ENTRIES 个 Shape，超过后不再缓存
+final class PropertyCache {
+    static final int MAX_ENTRIES = 4;
+
+    final Shape shape;
+    // 字段下标；属性是方法时为 -1
+    final int index;
+    // 属性是方法时找到的方法
+    final LoxFunction method;
+    // 赋值后实例的 Shape，给新字段赋值时与 shape 不同
+    final Shape next;
+    private final PropertyCache rest;
+    private final int size;
+
+    private PropertyCache(Shape shape, int index, LoxFunction method,
+                          Shape next, PropertyCache rest) {
+        this.shape = shape;
+        this.index = index;
+        this.method = method;
+        this.next = next;
+        this.rest = rest;
+        this.size = rest == null ? 1 : rest.size + 1;
+    }
+
+    // 读取属性：字段或绑定了实例的方法
+    static Object get(PropertyCache[] caches, Expr.Get expr, LoxInstance instance) {
+        PropertyCache entry = lookup(caches, expr, instance);
+        if (entry.index >= 0) return instance.fields[entry.index];
+        return entry.method.bind(instance);
+    }
+
+    // 查找属性，属性不存在时报错
+    static PropertyCache lookup(PropertyCache[] caches, Expr.Get expr,
+                                LoxInstance instance) {
+        PropertyCache cache = caches[expr.site];
+        PropertyCache entry = find(cache, instance.shape);
+        if (entry == null) {
+            entry = lookupGet(instance, expr.name, cache);
+            if (entry.size <= MAX_ENTRIES) caches[expr.site] = entry;
+        }
+        return entry;
+    }
+
+    // 给字段赋值，必要时添加新字段
+    static void set(PropertyCache[] caches, Expr.Set expr, LoxInstance instance,
+                    Object value) {
+        PropertyCache cache = caches[expr.site];
+        PropertyCache entry = find(cache, instance.shape);
+        if (entry == null) {
+            entry = lookupSet(instance, expr.name, cache);
+            if (entry.size <= MAX_ENTRIES) caches[expr.site] = entry;
+        }
+
+        instance.setField(entry.next, entry.index, value);
+    }
+
+    private static PropertyCache find(PropertyCache cache, Shape shape) {
+        for (PropertyCache entry = cache; entry != null; entry = entry.rest) {
+            if (entry.shape == shape) return entry;
+        }
+        return null;
+    }
+
+    private static PropertyCache lookupGet(LoxInstance instance, Token name,
+                                           PropertyCache rest) {
+        Shape shape = instance.shape;
+        int index = shape.indexOf(name.lexeme());
+        if (index >= 0) return new PropertyCache(shape, index, null, shape, rest);
+
+        LoxFunction method = instance.klass.findMethod(name.lexeme());
+        if (method != null) return new PropertyCache(shape, -1, method, shape, rest);
+
+        throw new RuntimeError(name,
+            "Undefined property '" + name.lexeme() + "'.");
+    }
+
+    private static PropertyCache lookupSet(LoxInstance instance, Token name,
+                                           PropertyCache rest) {
+        Shape shape = instance.shape;
+        int index = shape.indexOf(name.lexeme());
+        if (index >= 0) return new PropertyCache(shape, index, null, shape, rest);
+
+        return new PropertyCache(shape, shape.size(), null,
+                shape.with(name.lexeme()), rest);
+    }
+}
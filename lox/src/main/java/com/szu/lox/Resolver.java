@@ -1,6 +1,6 @@
 package com.szu.lox;
 
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
@@ -8,15 +8,30 @@ import java.util.Stack;
 // 小型的解释器，用于做语义分析，优化程序
 // 每次访问一个变量时，它都会告诉解释器，在当前作用域和变量定义的作用域之间隔着多少层作用域。
 // 在运行时，这正好对应于当前环境与解释器可以找到变量值的外围环境之间的environments数量。
+// 只有被闭包捕获的块作用域才在运行时创建环境，其余块的变量直接放在外层环境的槽位中。
+// 是否被捕获要看完整个程序才知道，所以解析两遍：第一遍找出被捕获的块，第二遍再分配槽位和距离
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
+    private final Diagnostics diagnostics;
+    // 全局变量表，为全局变量分配下标
+    private final Environment globals;
     // 当前作用域内的栈，每个元素是一个块作用域
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
     // 跟踪当前访问的代码是否在一个函数声明内部
     private FunctionType currentFunction = FunctionType.NONE;
+    // 第二遍解析不再重复报告错误
+    private boolean secondPass = false;
+    // 下一个属性访问点的编号，同一会话中不同程序的编号不重复，解释器按编号存放内联缓存
+    private int sites;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver(Diagnostics diagnostics, Environment globals, int firstSite) {
+        this.diagnostics = diagnostics;
+        this.globals = globals;
+        this.sites = firstSite;
+    }
+
+    // 解析结束后已分配的属性访问点总数
+    int sites() {
+        return sites;
     }
 
     private enum FunctionType {
@@ -26,6 +41,53 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         METHOD
     }
 
+    // 作用域的静态信息
+    private static class Scope {
+        // 变量名是 SymbolTable 中的唯一字符串，按引用查找
+        final Map<String, Local> locals = new IdentityHashMap<>();
+        // 块作用域对应的块语句，函数作用域和 super 作用域为 null
+        final Stmt.Block block;
+        // 函数作用域，穿过它访问外层变量的是闭包
+        final boolean function;
+        // 运行时是否为这个作用域创建环境
+        final boolean scoped;
+        // 变量实际存放的作用域：创建环境的作用域是自己，否则借用外层作用域的环境
+        final Scope frame;
+        // 进入作用域时 frame 中下一个空闲的槽位，离开时还给 frame，兄弟块可以复用
+        final int start;
+        // frame 中下一个空闲的槽位和需要的槽位总数，只对创建环境的作用域有意义
+        int next = 0;
+        int size = 0;
+
+        Scope(Scope enclosing, Stmt.Block block, boolean function) {
+            this.block = block;
+            this.function = function;
+            // 顶层的块外面只有全局环境，不能借用，总是创建环境
+            this.scoped = block == null || block.captured || enclosing == null;
+            this.frame = scoped ? this : enclosing.frame;
+            this.start = frame.next;
+        }
+
+        // 为新变量分配槽位
+        int allocate() {
+            int slot = frame.next++;
+            frame.size = Math.max(frame.size, frame.next);
+            return slot;
+        }
+    }
+
+    // 局部变量的静态信息
+    private static class Local {
+        // 变量在所属作用域环境中的槽位，按声明顺序分配
+        final int slot;
+        // 是否已完成初始化
+        boolean defined = false;
+
+        Local(int slot) {
+            this.slot = slot;
+        }
+    }
+
     private enum ClassType {
         NONE,
         CLASS,
@@ -35,11 +97,20 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // 告诉我们，在遍历语法树时，我们目前是否在一个类声明中
     private ClassType currentClass = ClassType.NONE;
 
+    // 解析程序：第一遍找出被闭包捕获的块，第二遍按结果分配槽位和距离
+    void resolveProgram(List<Stmt> statements) {
+        resolve(statements);
+        secondPass = true;
+        resolve(statements);
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        beginScope(stmt, false);
         resolve(stmt.statements);
-        endScope();
+        Scope scope = endScope();
+        stmt.scoped = scope.scoped;
+        stmt.size = scope.size;
         return null;
     }
 
@@ -49,13 +120,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
 
         // 不能继承自身
         if (stmt.superclass != null &&
-            stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-            Lox.error(stmt.superclass.name,
+            stmt.name.lexeme().equals(stmt.superclass.name.lexeme())) {
+            error(stmt.superclass.name,
                 "A class can't inherit from itself.");
         }
 
@@ -66,26 +137,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         // 如果有超类，会创建闭包环境
         if (stmt.superclass != null) {
-            beginScope();
-            scopes.peek().put("super", true);
+            beginScope(null, false);
+            declareSynthetic("super");
         }
 
-        // 为了与解释器环境链同步，创建闭包环境
-        beginScope();
-        scopes.peek().put("this", true);
-
+        // this 是方法作用域中的第一个变量，见 resolveFunction
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
 
-            if (method.name.lexeme.equals("init")) {
+            if (method.name.lexeme().equals("init")) {
                 declaration = FunctionType.INITIALIZER;
             }
 
             resolveFunction(method, declaration);
         }
 
-        endScope();
-
         if (stmt.superclass != null) endScope();
 
         currentClass = enclosingClass;
@@ -105,7 +171,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitFunctionStmt(Stmt.Function stmt) {
         // 将函数名绑到当前作用域中
         // 在解析函数体之前急切地定义这个函数名称，使得函数可以在自己的函数体内递归地调用自身
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
 
         // 将参数绑定到函数内部作用域中
@@ -135,13 +201,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitReturnStmt(Stmt.Return stmt) {
         // return 语句不在函数中，没有任何意义
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+            error(stmt.keyword, "Can't return from top-level code.");
         }
 
         if (stmt.value != null) {
             // 如果return所在的函数为init()初始化函数，则不允许有返回值
             if (currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword,
+                error(stmt.keyword,
                         "Can't return a value from an initializer.");
             }
 
@@ -154,7 +220,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // 解析变量声明
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -175,7 +241,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
         // 解析待赋值的变量
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
+        expr.slot = slotOf(expr.depth, expr.name);
         return null;
     }
 
@@ -184,6 +251,18 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitBinaryExpr(Expr.Binary expr) {
         resolve(expr.left);
         resolve(expr.right);
+
+        switch (expr.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                expr.numeric = true;
+                break;
+            case PLUS:
+                // 两边都是数字时才是加法，否则可能是字符串拼接
+                expr.numeric = expr.left.numeric && expr.right.numeric;
+                break;
+        }
         return null;
     }
 
@@ -202,6 +281,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // 解析类属性访问、函数调用
     @Override
     public Void visitGetExpr(Expr.Get expr) {
+        if (secondPass) expr.site = sites++;
         resolve(expr.object);
         return null;
     }
@@ -210,12 +290,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitGroupingExpr(Expr.Grouping expr) {
         resolve(expr.expression);
+        expr.numeric = expr.expression.numeric;
         return null;
     }
 
     // 解析字面量表达式
     @Override
     public Void visitLiteralExpr(Expr.Literal expr) {
+        expr.numeric = expr.value instanceof Double;
         return null;
     }
 
@@ -229,6 +311,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitSetExpr(Expr.Set expr) {
+        if (secondPass) expr.site = sites++;
         resolve(expr.value);
         resolve(expr.object);
         return null;
@@ -237,14 +320,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            error(expr.keyword,
                     "Can't use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.keyword,
+            error(expr.keyword,
                     "Can't use 'super' in a class with no superclass.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveLocal(expr.keyword);
+        if (expr.depth != Expr.GLOBAL) expr.slot = slotOf(expr.depth, expr.keyword);
+        expr.thisDepth = depthOf("this");
         return null;
     }
 
@@ -253,12 +338,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitThisExpr(Expr.This expr) {
         // 如果 this 不在类中定义，我们认为这是不合法的
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            error(expr.keyword,
                       "Can't use 'this' outside of a class.");
             return null;
         }
 
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveLocal(expr.keyword);
+        if (expr.depth != Expr.GLOBAL) expr.slot = slotOf(expr.depth, expr.keyword);
         return null;
     }
 
@@ -266,6 +352,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitUnaryExpr(Expr.Unary expr) {
         resolve(expr.right);
+        expr.numeric = expr.operator.type == TokenType.MINUS;
         return null;
     }
 
@@ -274,12 +361,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitVariableExpr(Expr.Variable expr) {
         // 表示已经声明了，但是还未被定义，即还未被初始化
         if (!scopes.isEmpty() &&
-            scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name,
+            scopes.peek().locals.containsKey(expr.name.lexeme()) &&
+            !scopes.peek().locals.get(expr.name.lexeme()).defined) {
+            error(expr.name,
                       "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
+        expr.slot = slotOf(expr.depth, expr.name);
         return null;
     }
 
@@ -308,52 +397,98 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
-        beginScope();
+        beginScope(null, true);
+        // 方法调用时 this 直接放在方法自己的环境中，占用槽位 0，不需要额外创建一层绑定环境
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            declareSynthetic("this");
+        }
         for (Token param : function.params) {
             declare(param);
             define(param);
         }
         resolve(function.body);
-        endScope();
+        function.size = endScope().size;
         currentFunction = enclosingFunction;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+    private void beginScope(Stmt.Block block, boolean function) {
+        Scope enclosing = scopes.isEmpty() ? null : scopes.peek();
+        scopes.push(new Scope(enclosing, block, function));
     }
 
-    private void endScope() {
-        scopes.pop();
+    private Scope endScope() {
+        Scope scope = scopes.pop();
+        // 借用外层环境的块离开后，它的槽位可以被后面的变量复用
+        if (!scope.scoped) scope.frame.next = scope.start;
+        return scope;
     }
 
-    // 标记变量尚未就绪，不可使用
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    // 标记变量尚未就绪，不可使用，返回变量的槽位，全局变量返回 Expr.GLOBAL
+    private int declare(Token name) {
+        if (scopes.isEmpty()) return Expr.GLOBAL;
 
-        Map<String, Boolean> scope = scopes.peek();
+        Scope scope = scopes.peek();
 
         // 在同一作用域中重复声明变量，打印错误信息，并不会抛出错误
-        if (scope.containsKey(name.lexeme)) {
-            Lox.error(name,
+        if (scope.locals.containsKey(name.lexeme())) {
+            error(name,
             "Already a variable with this name in this scope.");
         }
 
-        scope.put(name.lexeme, false);
+        Local local = new Local(scope.allocate());
+        scope.locals.put(name.lexeme(), local);
+        return local.slot;
     }
 
     // 标记变量已完成初始化，并可以使用
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().locals.get(name.lexeme()).defined = true;
+    }
+
+    // 声明解释器隐式定义的变量，如 this 和 super
+    private void declareSynthetic(String name) {
+        Scope scope = scopes.peek();
+        Local local = new Local(scope.allocate());
+        local.defined = true;
+        scope.locals.put(name, local);
+    }
+
+    // 在作用域链中查找，返回当前作用域与变量所在作用域之间的间隔数
+    // 找不到则认为是全局变量，返回 Expr.GLOBAL
+    private int resolveLocal(Token name) {
+        return depthOf(name.lexeme());
     }
 
-    // 在作用域链中查找
-    private void resolveLocal(Expr expr, Token name) {
+    // 距离只计算运行时会创建环境的作用域；穿过函数作用域访问的块变量被闭包捕获
+    private int depthOf(String name) {
+        int depth = 0;
+        boolean captured = false;
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            Scope scope = scopes.get(i);
+            if (scope.locals.containsKey(name)) {
+                if (captured && scope.block != null) scope.block.captured = true;
+                return depth;
             }
+
+            if (scope.scoped) depth++;
+            if (scope.function) captured = true;
         }
+
+        return Expr.GLOBAL;
+    }
+
+    // 变量在其所在作用域环境中的槽位，全局变量为它在全局变量表中的下标
+    private int slotOf(int depth, Token name) {
+        if (depth == Expr.GLOBAL) return globals.indexOf(name.lexeme());
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Local local = scopes.get(i).locals.get(name.lexeme());
+            if (local != null) return local.slot;
+        }
+        throw new IllegalStateException("Unresolved local " + name.lexeme());
+    }
+
+    private void error(Token token, String message) {
+        if (!secondPass) diagnostics.error(token, message);
     }
-}
\ No newline at end of file
+}
@@ -3,9 +3,18 @@ package com.szu.lox;
 // 运行时错误对象
 class RuntimeError extends RuntimeException {
     final Token token;
+    // 出错的源码行，字节码虚拟机中没有 Token，直接记录行号
+    final int line;
 
     RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+        this.line = token.line;
+    }
+
+    RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
     }
 }
@@ -1,39 +1,40 @@
 package com.szu.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.EnumMap;
 import java.util.Map;
 
 import static com.szu.lox.TokenType.*;
 
 // 扫描器 ===> 词法标记序列
+// 按需扫描：解析器每次取一个词法单元，不把整个源码的词法单元先放进列表；
+// 词法单元只记录词位在源码中的位置，用到词位时才截取字符串
 class Scanner {
-    private static final Map<String, TokenType> keywords;
+    // 保留字的文本；保留字按首字母分支识别，这里只用来比较剩余的字符并作为词位
+    private static final Map<TokenType, String> keywords = new EnumMap<>(TokenType.class);
 
-    // 保留字
     static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
+        keywords.put(AND,    "and");
+        keywords.put(CLASS,  "class");
+        keywords.put(ELSE,   "else");
+        keywords.put(FALSE,  "false");
+        keywords.put(FOR,    "for");
+        keywords.put(FUN,    "fun");
+        keywords.put(IF,     "if");
+        keywords.put(NIL,    "nil");
+        keywords.put(OR,     "or");
+        keywords.put(PRINT,  "print");
+        keywords.put(RETURN, "return");
+        keywords.put(SUPER,  "super");
+        keywords.put(THIS,   "this");
+        keywords.put(TRUE,   "true");
+        keywords.put(VAR,    "var");
+        keywords.put(WHILE,  "while");
     }
 
     private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final Diagnostics diagnostics;
+    // 本程序中出现的名字
+    private final SymbolTable symbols = new SymbolTable();
     // 扫描器位置跟踪标记
     // start指向被扫描地词素中的第一个字符
     // current指向当前正在处理字符的下一个字符
@@ -42,56 +43,54 @@ class Scanner {
     private int current = 0;
     private int line = 1;
 
-    Scanner(String source) {
+    Scanner(String source, Diagnostics diagnostics) {
         this.source = source;
+        this.diagnostics = diagnostics;
     }
 
-    List<Token> scanTokens() {
+    // 扫描下一个词法单元，到达结尾后总是返回 EOF
+    Token next() {
         while (!isAtEnd()) {
             // 重置为下一个词素的开头
             // 发现错误，记录错误，忽略错误，继续扫描，尽可能的找出更多错误
             start = current;
-            scanToken();
+            Token token = scanToken();
+            if (token != null) return token;
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        return new Token(EOF, "", null, line);
     }
 
-    private void scanToken() {
+    // 扫描一个词素，空白、注释和无法识别的字符返回 null
+    private Token scanToken() {
         char c = advance();
         switch (c) {
             // 一个字符
-            case '(': addToken(LEFT_PAREN); break;
-            case ')': addToken(RIGHT_PAREN); break;
-            case '{': addToken(LEFT_BRACE); break;
-            case '}': addToken(RIGHT_BRACE); break;
-            case ',': addToken(COMMA); break;
-            case '.': addToken(DOT); break;
-            case '-': addToken(MINUS); break;
-            case '+': addToken(PLUS); break;
-            case ';': addToken(SEMICOLON); break;
-            case '*': addToken(STAR); break;
+            case '(': return token(LEFT_PAREN);
+            case ')': return token(RIGHT_PAREN);
+            case '{': return token(LEFT_BRACE);
+            case '}': return token(RIGHT_BRACE);
+            case ',': return token(COMMA);
+            case '.': return token(DOT);
+            case '-': return token(MINUS);
+            case '+': return token(PLUS);
+            case ';': return token(SEMICOLON);
+            case '*': return token(STAR);
             // 一个或两个字符
             case '!':
-                addToken(match('=') ? BANG_EQUAL : BANG);
-                break;
+                return token(match('=') ? BANG_EQUAL : BANG);
             case '=':
-                addToken(match('=') ? EQUAL_EQUAL : EQUAL);
-                break;
+                return token(match('=') ? EQUAL_EQUAL : EQUAL);
             case '<':
-                addToken(match('=') ? LESS_EQUAL : LESS);
-                break;
+                return token(match('=') ? LESS_EQUAL : LESS);
             case '>':
-                addToken(match('=') ? GREATER_EQUAL : GREATER);
-                break;
+                return token(match('=') ? GREATER_EQUAL : GREATER);
             case '/':
                 if (match('/')) {
                     while (peek() != '\n' && !isAtEnd()) advance();
-                } else {
-                    addToken(SLASH);
+                    return null;
                 }
-                break;
+                return token(SLASH);
             case ' ':
             case '\r':
             case '\t':
@@ -102,40 +101,83 @@ class Scanner {
                 line ++ ;
                 break;
 
-            case '"': string(); break;
+            case '"': return string();
 
             default:
-                if (isDigit(c)) {
-                    number();
-                } else if (isAlpha(c)) {
-                    identifier();
-                } else {
-                    Lox.error(line, "Unexpected character.");
-                }
+                if (isDigit(c)) return number();
+                if (isAlpha(c)) return identifier();
+
+                diagnostics.error(line, "Unexpected character.");
                 break;
         }
+
+        return null;
     }
 
-    private void identifier() {
+    private Token identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        // 如果不是保留字，则就是用户定义的标识符
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        TokenType type = keyword();
+        // 保留字的词位是字符串常量，用户定义的标识符的词位是符号表中唯一的字符串
+        if (type != null) return new Token(type, keywords.get(type), null, line);
+        return new Token(IDENTIFIER, symbols.intern(source, start, current), null, line);
+    }
+
+    // 根据前一两个字符确定唯一可能的保留字，再比较剩余的字符；不是保留字时返回 null
+    // 识别过程中不创建字符串，大多数标识符在第一个字符处就可以排除
+    private TokenType keyword() {
+        switch (source.charAt(start)) {
+            case 'a': return keyword(AND);
+            case 'c': return keyword(CLASS);
+            case 'e': return keyword(ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return keyword(FALSE);
+                        case 'o': return keyword(FOR);
+                        case 'u': return keyword(FUN);
+                    }
+                }
+                break;
+            case 'i': return keyword(IF);
+            case 'n': return keyword(NIL);
+            case 'o': return keyword(OR);
+            case 'p': return keyword(PRINT);
+            case 'r': return keyword(RETURN);
+            case 's': return keyword(SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return keyword(THIS);
+                        case 'r': return keyword(TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(VAR);
+            case 'w': return keyword(WHILE);
+        }
+        return null;
+    }
+
+    private TokenType keyword(TokenType type) {
+        String text = keywords.get(type);
+        if (current - start == text.length() &&
+                source.regionMatches(start, text, 0, text.length())) {
+            return type;
+        }
+        return null;
     }
 
     // 获取字符串字面量
-    private void string() {
+    private Token string() {
         while (peek() != '"' && !isAtEnd()) {
             if (peek() == '\n') line ++ ;
             advance();
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
-            return;
+            diagnostics.error(line, "Unterminated string.");
+            return null;
         }
 
         // The closing ".
@@ -143,11 +185,11 @@ class Scanner {
 
         // 获取引号之间的内容
         String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        return token(STRING, value);
     }
 
     // 获取数字字面量
-    private void number() {
+    private Token number() {
         while (isDigit(peek())) advance();
 
         // Look for a fractional part.
@@ -158,7 +200,7 @@ class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER,
+        return token(NUMBER,
                 Double.parseDouble(source.substring(start, current)));
     }
 
@@ -211,12 +253,11 @@ class Scanner {
         return source.charAt(current - 1);
     }
 
-    private void addToken(TokenType type) {
-        addToken(type, null);
+    private Token token(TokenType type) {
+        return token(type, null);
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    private Token token(TokenType type, Object literal) {
+        return new Token(type, source, start, current, literal, line);
     }
 }
@@ -0,0 +1,49 @@
+package com.szu.lox;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// 隐藏类：描述实例有哪些字段，以及每个字段在实例字段数组中的下标
+// 每个类有一个没有字段的根 Shape，实例添加字段时沿着转移边得到新的 Shape，
+// 因此按相同顺序添加相同字段的实例共享同一个 Shape
+// 字段名是 SymbolTable 中的唯一字符串，按引用比较，不计算字符串的哈希值
+class Shape {
+    // 字段名到下标的映射，创建后不再修改
+    private final Map<String, Integer> indexes;
+    // 添加一个字段后得到的 Shape
+    private Map<String, Shape> transitions = Collections.emptyMap();
+
+    Shape() {
+        this.indexes = Collections.emptyMap();
+    }
+
+    private Shape(Map<String, Integer> indexes) {
+        this.indexes = indexes;
+    }
+
+    // 字段下标，没有该字段时返回 -1
+    int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    // 字段个数，新字段的下标即当前的字段个数
+    int size() {
+        return indexes.size();
+    }
+
+    // 添加字段得到的 Shape
+    Shape with(String name) {
+        Shape next = transitions.get(name);
+        if (next != null) return next;
+
+        Map<String, Integer> nextIndexes = new IdentityHashMap<>(indexes);
+        nextIndexes.put(name, indexes.size());
+        next = new Shape(nextIndexes);
+
+        if (transitions.isEmpty()) transitions = new IdentityHashMap<>();
+        transitions.put(name, next);
+        return next;
+    }
+}
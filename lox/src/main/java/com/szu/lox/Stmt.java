@@ -25,6 +25,9 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+    boolean captured;
+    boolean scoped;
+    int size;
   }
   static class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
@@ -41,6 +44,7 @@ abstract class Stmt {
     final Token name;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
+    int slot = Expr.GLOBAL;
   }
   static class Expression extends Stmt {
     Expression(Expr expression) {
@@ -69,6 +73,10 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    int slot = Expr.GLOBAL;
+    int size;
+    int calls;
+    CompiledStmt compiled;
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -125,11 +133,13 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+    int slot = Expr.GLOBAL;
   }
   static class While extends Stmt {
-    While(Expr condition, Stmt body) {
+    While(Expr condition, Stmt body, Token end) {
       this.condition = condition;
       this.body = body;
+      this.end = end;
     }
 
     @Override
@@ -139,6 +149,7 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+    final Token end;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
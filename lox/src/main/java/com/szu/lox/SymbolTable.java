@@ -0,0 +1,50 @@
+package com.szu.lox;
+
+// 扫描器的符号表：同一个名字在程序中只对应一个字符串对象
+// 按源码中的字符直接计算哈希并比较，名字重复出现时不再截取新的字符串；
+// 第一次出现的名字经过 String.intern()，不同程序、不同会话中相同的名字也是同一个对象，
+// 因此类的方法表、Shape 的字段表等运行时结构可以按引用比较名字
+class SymbolTable {
+    private String[] symbols = new String[64];
+    private int count = 0;
+
+    // 源码中 [start, end) 范围内的名字对应的符号
+    String intern(String source, int start, int end) {
+        int length = end - start;
+        // 与 String.hashCode() 的算法相同，扩容时可以直接使用字符串的哈希值
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        int mask = symbols.length - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            String symbol = symbols[index];
+            if (symbol == null) {
+                symbol = source.substring(start, end).intern();
+                add(index, symbol);
+                return symbol;
+            }
+            if (symbol.length() == length &&
+                    symbol.regionMatches(0, source, start, length)) {
+                return symbol;
+            }
+        }
+    }
+
+    private void add(int index, String symbol) {
+        symbols[index] = symbol;
+        // 装载因子不超过 1/2
+        if (++count * 2 <= symbols.length) return;
+
+        String[] old = symbols;
+        symbols = new String[old.length * 2];
+        int mask = symbols.length - 1;
+        for (String existing : old) {
+            if (existing == null) continue;
+            int slot = existing.hashCode() & mask;
+            while (symbols[slot] != null) slot = (slot + 1) & mask;
+            symbols[slot] = existing;
+        }
+    }
+}
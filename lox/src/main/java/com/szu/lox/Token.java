@@ -4,21 +4,42 @@ package com.szu.lox;
 class Token {
     // 标记类型
     final TokenType type;
-    // 词位
-    final String lexeme;
     // 字面量
     final Object literal;
     // 位置
     final int line;
+    // 词位在源码中的范围，扫描时不截取字符串；合成的词法单元没有源码，直接给出词位
+    private final String source;
+    private final int start;
+    private final int end;
+    // 词位，第一次用到时才从源码中截取
+    private String lexeme;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
-        this.type = type;
+        this(type, null, 0, lexeme.length(), literal, line);
         this.lexeme = lexeme;
+    }
+
+    Token(TokenType type, String source, int start, int end, Object literal, int line) {
+        this.type = type;
+        this.source = source;
+        this.start = start;
+        this.end = end;
         this.literal = literal;
         this.line = line;
     }
 
+    // 词位；语法树可能被多个线程共享，并发截取得到的是相同内容的字符串
+    String lexeme() {
+        String text = lexeme;
+        if (text == null) {
+            text = source.substring(start, end);
+            lexeme = text;
+        }
+        return text;
+    }
+
     public String toString() {
-        return type + " " + lexeme + " " + literal;
+        return type + " " + lexeme() + " " + literal;
     }
 }
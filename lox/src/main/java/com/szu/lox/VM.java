@@ -0,0 +1,613 @@
+package com.szu.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// 字节码虚拟机 ===> 执行 Compiler 生成的字节码
+// 值栈由 stack 和 numbers 两个并行数组组成：数字不装箱，对应的 stack 槽位放入 NUMBER 标记，
+// 只有数字被存入全局变量、字段、关闭的上值或传给本地函数时才会装箱
+class VM {
+    // 栈槽位中的值是数字，数值存放在 numbers 的同一下标中
+    static final Object NUMBER = new Object();
+    // GET_METHOD 找到的是字段而不是方法时，放在接收者位置上的标记
+    private static final Object NOT_METHOD = new Object();
+
+    private static class CallFrame {
+        ObjClosure closure;
+        int ip;
+        // 槽位 0 在值栈中的位置
+        int base;
+        // 返回值存放的位置，方法调用时是方法所在的槽位，其余情况与 base 相同
+        int returnSlot;
+    }
+
+    private Object[] stack = new Object[256];
+    private double[] numbers = new double[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    // 函数调用的最大嵌套深度，不包括脚本本身的栈帧
+    int maxCallDepth = Interpreter.DEFAULT_MAX_CALL_DEPTH;
+    // 按槽位从高到低排列的打开上值
+    private ObjUpvalue openUpvalues = null;
+
+    // 全局变量表，同一会话的多次运行之间保留
+    final Environment globals = new Environment();
+    // 执行预算，默认不限制
+    Budget budget = new Budget(0, 0, 0);
+    private final Printer out;
+    private final Diagnostics diagnostics;
+
+    VM(Printer out, Diagnostics diagnostics) {
+        this.out = out;
+        this.diagnostics = diagnostics;
+
+        globals.define("clock", Interpreter.CLOCK);
+    }
+
+    void interpret(ObjFunction function) {
+        ObjClosure closure = new ObjClosure(function);
+        try {
+            push(closure);
+            call(closure, 0, 0, 0);
+            run();
+        } catch (RuntimeError error) {
+            out.flush();
+            diagnostics.runtimeError(error);
+        } finally {
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, stack.length, null);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.constants;
+        double[] constantNumbers = frame.closure.function.numbers;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        for (;;) {
+            switch (code[ip++]) {
+                case OpCode.CONSTANT: {
+                    int index = code[ip++] & 0xff;
+                    stack[sp] = constants[index];
+                    numbers[sp] = constantNumbers[index];
+                    sp++;
+                    break;
+                }
+                case OpCode.NIL: stack[sp++] = null; break;
+                case OpCode.TRUE: stack[sp++] = Boolean.TRUE; break;
+                case OpCode.FALSE: stack[sp++] = Boolean.FALSE; break;
+                case OpCode.POP: sp--; break;
+                case OpCode.GET_LOCAL: {
+                    int slot = base + (code[ip++] & 0xff);
+                    stack[sp] = stack[slot];
+                    numbers[sp] = numbers[slot];
+                    sp++;
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int slot = base + (code[ip++] & 0xff);
+                    stack[slot] = stack[sp - 1];
+                    numbers[slot] = numbers[sp - 1];
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    int index = readShort(code, ip);
+                    ip += 2;
+                    Object value = globals.getGlobal(index);
+                    if (value == Environment.UNDEFINED) {
+                        throw error(frame, ip, "Undefined variable '" +
+                                globals.nameOf(index) + "'.");
+                    }
+                    push(value);
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    int index = readShort(code, ip);
+                    ip += 2;
+                    globals.setGlobal(index, valueAt(sp - 1));
+                    sp--;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    int index = readShort(code, ip);
+                    ip += 2;
+                    if (globals.getGlobal(index) == Environment.UNDEFINED) {
+                        throw error(frame, ip, "Undefined variable '" +
+                                globals.nameOf(index) + "'.");
+                    }
+                    globals.setGlobal(index, valueAt(sp - 1));
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.location >= 0) {
+                        stack[sp] = stack[upvalue.location];
+                        numbers[sp] = numbers[upvalue.location];
+                        sp++;
+                    } else {
+                        push(upvalue.closed);
+                    }
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.location >= 0) {
+                        stack[upvalue.location] = stack[sp - 1];
+                        numbers[upvalue.location] = numbers[sp - 1];
+                    } else {
+                        upvalue.closed = valueAt(sp - 1);
+                    }
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    String name = (String) constants[code[ip++] & 0xff];
+                    if (!(stack[sp - 1] instanceof ObjInstance)) {
+                        throw error(frame, ip, "Only instances have properties.");
+                    }
+
+                    ObjInstance instance = (ObjInstance) stack[sp - 1];
+                    int index = instance.shape.indexOf(name);
+                    if (index >= 0) {
+                        setAt(sp - 1, instance.fields[index]);
+                        break;
+                    }
+
+                    ObjClosure method = instance.klass.methods.get(name);
+                    if (method == null) {
+                        throw error(frame, ip, "Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = new ObjBoundMethod(instance, method);
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    String name = (String) constants[code[ip++] & 0xff];
+                    if (!(stack[sp - 2] instanceof ObjInstance)) {
+                        throw error(frame, ip, "Only instances have fields.");
+                    }
+
+                    ObjInstance instance = (ObjInstance) stack[sp - 2];
+                    instance.set(name, valueAt(sp - 1));
+                    // 赋值表达式的结果是被赋的值
+                    stack[sp - 2] = stack[sp - 1];
+                    numbers[sp - 2] = numbers[sp - 1];
+                    sp--;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    String name = (String) constants[code[ip++] & 0xff];
+                    ObjClass superclass = (ObjClass) stack[--sp];
+                    ObjClosure method = superclass.methods.get(name);
+                    if (method == null) {
+                        throw error(frame, ip, "Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = new ObjBoundMethod(stack[sp - 1], method);
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    stack[sp - 2] = valuesEqual(sp - 2, sp - 1);
+                    sp--;
+                    break;
+                }
+                case OpCode.GREATER: {
+                    checkNumberOperands(frame, ip);
+                    stack[sp - 2] = numbers[sp - 2] > numbers[sp - 1];
+                    sp--;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    checkNumberOperands(frame, ip);
+                    stack[sp - 2] = numbers[sp - 2] >= numbers[sp - 1];
+                    sp--;
+                    break;
+                }
+                case OpCode.LESS: {
+                    checkNumberOperands(frame, ip);
+                    stack[sp - 2] = numbers[sp - 2] < numbers[sp - 1];
+                    sp--;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    checkNumberOperands(frame, ip);
+                    stack[sp - 2] = numbers[sp - 2] <= numbers[sp - 1];
+                    sp--;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object left = stack[sp - 2];
+                    Object right = stack[sp - 1];
+                    if (left == NUMBER && right == NUMBER) {
+                        numbers[sp - 2] += numbers[sp - 1];
+                    } else if (left instanceof String && right instanceof String) {
+                        String a = (String) left;
+                        String b = (String) right;
+                        budget.allocate(Budget.stringBytes(a.length() + b.length()));
+                        stack[sp - 2] = a + b;
+                    } else {
+                        throw error(frame, ip,
+                                "Operands must be two numbers or two strings.");
+                    }
+                    sp--;
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    checkNumberOperands(frame, ip);
+                    numbers[sp - 2] -= numbers[sp - 1];
+                    sp--;
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    checkNumberOperands(frame, ip);
+                    numbers[sp - 2] *= numbers[sp - 1];
+                    sp--;
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    checkNumberOperands(frame, ip);
+                    numbers[sp - 2] /= numbers[sp - 1];
+                    sp--;
+                    break;
+                }
+                case OpCode.NOT: {
+                    stack[sp - 1] = isFalsey(stack[sp - 1]);
+                    break;
+                }
+                case OpCode.NEGATE: {
+                    if (stack[sp - 1] != NUMBER) {
+                        throw error(frame, ip, "Operand must be a number.");
+                    }
+                    numbers[sp - 1] = -numbers[sp - 1];
+                    break;
+                }
+                case OpCode.PRINT: {
+                    out.println(Interpreter.stringify(valueAt(sp - 1)));
+                    sp--;
+                    break;
+                }
+                case OpCode.JUMP: {
+                    int offset = readShort(code, ip);
+                    ip += 2 + offset;
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    int offset = readShort(code, ip);
+                    ip += 2;
+                    if (isFalsey(stack[sp - 1])) ip += offset;
+                    break;
+                }
+                case OpCode.LOOP: {
+                    // 循环回边消耗一步预算
+                    if (budget.step()) throw error(frame, ip, budget.message());
+                    int offset = readShort(code, ip);
+                    ip += 2 - offset;
+                    break;
+                }
+                case OpCode.CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    int calleeSlot = sp - argCount - 1;
+                    if (!callValue(calleeSlot, argCount)) break;
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.constants;
+                    constantNumbers = frame.closure.function.numbers;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.GET_METHOD: {
+                    String name = (String) constants[code[ip++] & 0xff];
+                    if (!(stack[sp - 1] instanceof ObjInstance)) {
+                        throw error(frame, ip, "Only instances have properties.");
+                    }
+
+                    ObjInstance instance = (ObjInstance) stack[sp - 1];
+                    int index = instance.shape.indexOf(name);
+                    if (index >= 0) {
+                        setAt(sp - 1, instance.fields[index]);
+                        stack[sp++] = NOT_METHOD;
+                        break;
+                    }
+
+                    ObjClosure method = instance.klass.methods.get(name);
+                    if (method == null) {
+                        throw error(frame, ip, "Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = method;
+                    stack[sp++] = instance;
+                    break;
+                }
+                case OpCode.GET_SUPER_METHOD: {
+                    String name = (String) constants[code[ip++] & 0xff];
+                    ObjClass superclass = (ObjClass) stack[sp - 1];
+                    ObjClosure method = superclass.methods.get(name);
+                    if (method == null) {
+                        throw error(frame, ip, "Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = stack[sp - 2];
+                    stack[sp - 2] = method;
+                    break;
+                }
+                case OpCode.CALL_METHOD: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    int receiverSlot = sp - argCount - 1;
+                    boolean pushedFrame;
+                    if (stack[receiverSlot] == NOT_METHOD) {
+                        // 字段中保存的可调用对象：去掉标记，按普通调用处理
+                        System.arraycopy(stack, receiverSlot + 1, stack, receiverSlot, argCount);
+                        System.arraycopy(numbers, receiverSlot + 1, numbers, receiverSlot, argCount);
+                        sp--;
+                        pushedFrame = callValue(receiverSlot - 1, argCount);
+                    } else {
+                        ObjClosure method = (ObjClosure) stack[receiverSlot - 1];
+                        call(method, argCount, receiverSlot, receiverSlot - 1);
+                        pushedFrame = true;
+                    }
+                    if (!pushedFrame) break;
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.constants;
+                    constantNumbers = frame.closure.function.numbers;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    ObjFunction function = (ObjFunction) constants[code[ip++] & 0xff];
+                    ObjClosure closure = new ObjClosure(function);
+                    budget.allocate(Budget.objectBytes(closure.upvalues.length));
+                    stack[sp++] = closure;
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++] & 0xff;
+                        closure.upvalues[i] = isLocal
+                                ? captureUpvalue(base + index)
+                                : frame.closure.upvalues[index];
+                    }
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE: {
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+                }
+                case OpCode.RETURN: {
+                    Object result = stack[sp - 1];
+                    double number = numbers[sp - 1];
+                    closeUpvalues(base);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        sp = 0;
+                        return;
+                    }
+
+                    int returnSlot = frame.returnSlot;
+                    stack[returnSlot] = result;
+                    numbers[returnSlot] = number;
+                    sp = returnSlot + 1;
+
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.constants;
+                    constantNumbers = frame.closure.function.numbers;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLASS: {
+                    String name = (String) constants[code[ip++] & 0xff];
+                    stack[sp++] = new ObjClass(name);
+                    break;
+                }
+                case OpCode.INHERIT: {
+                    if (!(stack[sp - 2] instanceof ObjClass)) {
+                        throw error(frame, ip, "Superclass must be a class.");
+                    }
+
+                    ObjClass superclass = (ObjClass) stack[sp - 2];
+                    ObjClass subclass = (ObjClass) stack[sp - 1];
+                    subclass.methods.putAll(superclass.methods);
+                    sp--;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    String name = (String) constants[code[ip++] & 0xff];
+                    ObjClass klass = (ObjClass) stack[sp - 2];
+                    klass.methods.put(name, (ObjClosure) stack[sp - 1]);
+                    sp--;
+                    break;
+                }
+            }
+        }
+    }
+
+    // 调用栈上 calleeSlot 处的值，返回是否压入了新的栈帧
+    private boolean callValue(int calleeSlot, int argCount) {
+        Object callee = stack[calleeSlot];
+
+        if (callee instanceof ObjClosure) {
+            call((ObjClosure) callee, argCount, calleeSlot, calleeSlot);
+            return true;
+        }
+
+        if (callee instanceof ObjBoundMethod) {
+            ObjBoundMethod bound = (ObjBoundMethod) callee;
+            stack[calleeSlot] = bound.receiver;
+            call(bound.method, argCount, calleeSlot, calleeSlot);
+            return true;
+        }
+
+        if (callee instanceof ObjClass) {
+            ObjClass klass = (ObjClass) callee;
+            stack[calleeSlot] = new ObjInstance(klass);
+            budget.allocate(Budget.objectBytes(klass.fieldCount));
+            ObjClosure initializer = klass.methods.get("init");
+            if (initializer != null) {
+                call(initializer, argCount, calleeSlot, calleeSlot);
+                return true;
+            }
+
+            if (argCount != 0) {
+                throw error("Expected 0 arguments but got " + argCount + ".");
+            }
+            sp = calleeSlot + 1;
+            return false;
+        }
+
+        if (callee instanceof LoxCallable) {
+            LoxCallable function = (LoxCallable) callee;
+            if (argCount != function.arity()) {
+                throw error("Expected " + function.arity() +
+                        " arguments but got " + argCount + ".");
+            }
+
+            List<Object> arguments = new ArrayList<>(argCount);
+            for (int i = 0; i < argCount; i++) {
+                arguments.add(valueAt(calleeSlot + 1 + i));
+            }
+            Object result = function.call(null, arguments);
+            sp = calleeSlot;
+            push(result);
+            return false;
+        }
+
+        throw error("Can only call functions and classes.");
+    }
+
+    private void call(ObjClosure closure, int argCount, int base, int returnSlot) {
+        if (argCount != closure.function.arity) {
+            throw error("Expected " + closure.function.arity +
+                    " arguments but got " + argCount + ".");
+        }
+
+        if (frameCount > maxCallDepth) {
+            throw error("Stack overflow.");
+        }
+
+        // 函数入口消耗一步预算，脚本本身的调用不计
+        if (frameCount > 0 && budget.step()) {
+            throw error(budget.message());
+        }
+
+        ensureStack(base + closure.function.maxStack);
+
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        frame.returnSlot = returnSlot;
+        frameCount++;
+    }
+
+    private void ensureStack(int size) {
+        if (size <= stack.length) return;
+
+        int capacity = Math.max(size, stack.length * 2);
+        stack = Arrays.copyOf(stack, capacity);
+        numbers = Arrays.copyOf(numbers, capacity);
+    }
+
+    private ObjUpvalue captureUpvalue(int location) {
+        ObjUpvalue previous = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.location > location) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.location == location) return upvalue;
+
+        ObjUpvalue created = new ObjUpvalue(location);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    // 关闭 last 及以上槽位的上值，把值从栈上移到上值对象中
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.location >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = valueAt(upvalue.location);
+            upvalue.location = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void push(Object value) {
+        setAt(sp, value);
+        sp++;
+    }
+
+    private void setAt(int slot, Object value) {
+        if (value instanceof Double) {
+            stack[slot] = NUMBER;
+            numbers[slot] = (double) value;
+        } else {
+            stack[slot] = value;
+        }
+    }
+
+    // 取出槽位中的值，数字在这里装箱
+    private Object valueAt(int slot) {
+        Object value = stack[slot];
+        if (value == NUMBER) return Interpreter.box(numbers[slot]);
+        return value;
+    }
+
+    private boolean isFalsey(Object value) {
+        return value == null || (value instanceof Boolean && !(boolean) value);
+    }
+
+    private boolean valuesEqual(int a, int b) {
+        if (stack[a] == NUMBER) {
+            return stack[b] == NUMBER && numbers[a] == numbers[b];
+        }
+        if (stack[b] == NUMBER) return false;
+
+        return Interpreter.isEqual(stack[a], stack[b]);
+    }
+
+    private void checkNumberOperands(CallFrame frame, int ip) {
+        if (stack[sp - 2] == NUMBER && stack[sp - 1] == NUMBER) return;
+        throw error(frame, ip, "Operands must be numbers.");
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    // 当前指令出错，ip 指向指令之后，行号取指令最后一个字节的行号
+    private RuntimeError error(CallFrame frame, int ip, String message) {
+        return new RuntimeError(frame.closure.function.chunk.lines[ip - 1], message);
+    }
+
+    // 调用出错，调用者的栈帧已经保存了 ip
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        return error(frame, frame.ip, message);
+    }
+}
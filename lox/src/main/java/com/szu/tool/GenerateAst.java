@@ -4,6 +4,7 @@ package com.szu.tool;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 // 代码生成工具，生成语法树节点类
@@ -17,38 +18,48 @@ public class GenerateAst {
         String outputDir = args[0];
 
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign   : Token name, Expr value",
+            "Assign   : Token name, Expr value | int depth = GLOBAL, int slot",
             "Binary   : Expr left, Token operator, Expr right",
             "Call     : Expr callee, Token paren, List<Expr> arguments",
-            "Get      : Expr object, Token name",
+            "Get      : Expr object, Token name | int site",
             "Grouping : Expr expression",
-            "Literal  : Object value",
+            "Literal  : Token token, Object value",
             "Logical  : Expr left, Token operator, Expr right",
-            "Set      : Expr object, Token name, Expr value",
-            "Super    : Token keyword, Token method",
-            "This     : Token keyword",
+            "Set      : Expr object, Token name, Expr value | int site",
+            "Super    : Token keyword, Token method | int depth = GLOBAL, int slot, int thisDepth",
+            "This     : Token keyword | int depth = GLOBAL, int slot",
             "Unary    : Token operator, Expr right",
-            "Variable : Token name"
+            "Variable : Token name | int depth = GLOBAL, int slot"
+        ), Arrays.asList(
+            "// Resolver 未能在局部作用域中找到的变量，其 depth 为 GLOBAL，slot 为全局变量表中的下标",
+            "static final int GLOBAL = -1;",
+            "// Resolver 标记的静态类型：求值结果一定是数字（或者运行时报错），可以不装箱计算",
+            "boolean numeric;"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-            "Block      : List<Stmt> statements",
+            "Block      : List<Stmt> statements" +
+                        " | boolean captured, boolean scoped, int size",
             "Class      : Token name, Expr.Variable superclass," +
-                        " List<Stmt.Function> methods",
+                        " List<Stmt.Function> methods | int slot = Expr.GLOBAL",
             "Expression : Expr expression",
             "Function   : Token name, List<Token> params," +
-                        " List<Stmt> body",
+                        " List<Stmt> body" +
+                        " | int slot = Expr.GLOBAL, int size, int calls, CompiledStmt compiled",
             "If         : Expr condition, Stmt thenBranch," +
                         " Stmt elseBranch",
             "Print      : Expr expression",
             "Return     : Token keyword, Expr value",
-            "Var        : Token name, Expr initializer",
-            "While      : Expr condition, Stmt body"
-        ));
+            "Var        : Token name, Expr initializer | int slot = Expr.GLOBAL",
+            "While      : Expr condition, Stmt body, Token end"
+        ), Collections.<String>emptyList());
     }
 
+    // 类型描述的格式为 "类名 : 构造器字段 | 可变字段"
+    // "|" 之后的字段不出现在构造器中，由 Resolver 等后续阶段写入，可以带初始值
     private static void defineAst(
-            String outputDir, String baseName, List<String> types)
+            String outputDir, String baseName, List<String> types,
+            List<String> members)
             throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
@@ -59,13 +70,21 @@ public class GenerateAst {
         writer.println();
         writer.println("abstract class " + baseName + " {");
 
+        // 基类中的常量等成员
+        for (String member : members) {
+            writer.println("  " + member);
+        }
+        if (!members.isEmpty()) writer.println();
+
         defineVisitor(writer, baseName, types);
 
         // The AST classes.
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fields = type.split(":")[1].split("\\|");
+            String mutableFields = fields.length > 1 ? fields[1].trim() : null;
+            defineType(writer, baseName, className, fields[0].trim(),
+                    mutableFields);
         }
 
         // The base accept() method.
@@ -91,7 +110,7 @@ public class GenerateAst {
 
     private static void defineType (
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String mutableFieldList) {
         writer.println("  static class " + className + " extends " +
                 baseName + " {");
 
@@ -121,6 +140,13 @@ public class GenerateAst {
             writer.println("    final " + field + ";");
         }
 
+        // 可变字段，例如 int depth = GLOBAL
+        if (mutableFieldList != null) {
+            for (String field : mutableFieldList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
+
         writer.println("  }");
     }
 }
\ No newline at end of file
@@ -0,0 +1,367 @@
+package com.szu.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoxEngineTest {
+    private final LoxEngine engine = LoxEngine.builder().build();
+
+    private String run(LoxEngine engine, String source) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream printStream = new PrintStream(out);
+        engine.newSession(printStream, printStream).run(source);
+        return out.toString();
+    }
+
+    @Test
+    void testStatus() {
+        PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+        assertEquals(LoxSession.Status.OK,
+                engine.newSession(sink, sink).run("print 1;"));
+        assertEquals(LoxSession.Status.COMPILE_ERROR,
+                engine.newSession(sink, sink).run("print ;"));
+        assertEquals(LoxSession.Status.RUNTIME_ERROR,
+                engine.newSession(sink, sink).run("print -\"a\";"));
+    }
+
+    @Test
+    void testSessionKeepsGlobals() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream printStream = new PrintStream(out);
+        LoxSession session = engine.newSession(printStream, printStream);
+
+        session.run("var a = 1;");
+        session.run("print a;");
+        session.run("print b;");
+
+        assertFalse(session.hadError());
+        assertTrue(session.hadRuntimeError());
+        assertEquals("1\nUndefined variable 'b'.\n[line 1]\n",
+                out.toString().replace(System.lineSeparator(), "\n"));
+    }
+
+    // 名字按引用比较，不同的运行中扫描得到的同名字段和方法必须是同一个字符串
+    @Test
+    void testSessionKeepsClasses() {
+        for (LoxEngine.Backend backend : LoxEngine.Backend.values()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            PrintStream printStream = new PrintStream(out);
+            LoxSession session = LoxEngine.builder().backend(backend).build()
+                    .newSession(printStream, printStream);
+
+            session.run("class A { init() { this.x = 1; } get() { return this.x; } }");
+            session.run("class B < A { get() { return super.get() + 1; } }");
+            session.run("var b = B(); b.y = 2;");
+            session.run("print b.get() + b.x + b.y;");
+
+            assertEquals("5\n", out.toString().replace(System.lineSeparator(), "\n"));
+        }
+    }
+
+    @Test
+    void testGlobals() {
+        LoxEngine engine = LoxEngine.builder()
+                .global("limit", 3)
+                .nativeFunction("twice", 1, args -> (double) args.get(0) * 2)
+                .build();
+
+        assertEquals("6\n", run(engine, "print twice(limit);")
+                .replace(System.lineSeparator(), "\n"));
+    }
+
+    @Test
+    void testTimeLimit() {
+        for (LoxEngine.Backend backend : LoxEngine.Backend.values()) {
+            LoxEngine engine = LoxEngine.builder()
+                    .backend(backend)
+                    .timeLimit(100)
+                    .build();
+            assertEquals("Execution time limit exceeded.\n[line 1]\n",
+                    run(engine, "while (true) {}")
+                            .replace(System.lineSeparator(), "\n"));
+        }
+    }
+
+    @Test
+    void testInstructionLimit() {
+        for (LoxEngine.Backend backend : LoxEngine.Backend.values()) {
+            LoxEngine engine = LoxEngine.builder()
+                    .backend(backend)
+                    .instructionLimit(100)
+                    .build();
+            assertEquals("Instruction limit exceeded.\n[line 1]\n",
+                    run(engine, "fun f() { f(); }\nf();")
+                            .replace(System.lineSeparator(), "\n"));
+            // 限制针对每次运行，预算以内的程序正常结束
+            assertEquals("100\n", run(engine,
+                    "var i = 0; while (i < 100) i = i + 1; print i;")
+                            .replace(System.lineSeparator(), "\n"));
+        }
+    }
+
+    @Test
+    void testMemoryLimit() {
+        for (LoxEngine.Backend backend : LoxEngine.Backend.values()) {
+            LoxEngine engine = LoxEngine.builder()
+                    .backend(backend)
+                    .memoryLimit(1 << 20)
+                    .build();
+            assertEquals("Memory limit exceeded.\n[line 1]\n",
+                    run(engine, "var s = \"a\"; while (true) s = s + s;")
+                            .replace(System.lineSeparator(), "\n"));
+        }
+    }
+
+    @Test
+    void testUsage() {
+        for (LoxEngine.Backend backend : LoxEngine.Backend.values()) {
+            PrintStream sink = new PrintStream(new ByteArrayOutputStream());
+            LoxSession session = LoxEngine.builder().backend(backend).build()
+                    .newSession(sink, sink);
+
+            session.run("class A {} var i = 0; while (i < 10) { A(); i = i + 1; }");
+            assertEquals(10, session.instructions());
+            assertTrue(session.allocatedBytes() >= 10 * 40);
+
+            // 每次运行重新计数
+            session.run("print i;");
+            assertEquals(0, session.instructions());
+            assertEquals(0, session.allocatedBytes());
+        }
+    }
+
+    @Test
+    void testMaxCallDepth() throws Exception {
+        for (LoxEngine.Backend backend : LoxEngine.Backend.values()) {
+            LoxEngine engine = LoxEngine.builder()
+                    .backend(backend)
+                    .maxCallDepth(10)
+                    .build();
+            String source = "fun f(n) {\n  if (n == 0) return 0;\n  return f(n - 1) + 1;\n}\n" +
+                    "print f(9);\nprint f(10);";
+            assertEquals("9\nStack overflow.\n[line 3]\n",
+                    run(engine, source).replace(System.lineSeparator(), "\n"));
+        }
+
+        // 默认的调用深度上限在引擎提供的线程中不会耗尽 Java 栈
+        LoxEngine engine = LoxEngine.builder().compileThreshold(0).build();
+        String[] result = new String[1];
+        Thread thread = engine.threadFactory().newThread(() ->
+                result[0] = run(engine, "fun f() { f(); }\nf();"));
+        thread.start();
+        thread.join();
+        assertEquals("Stack overflow.\n[line 1]\n",
+                result[0].replace(System.lineSeparator(), "\n"));
+    }
+
+    // 调用方自己的线程栈不足以到达调用深度上限时，仍然报告 "Stack overflow."
+    @Test
+    void testStackOverflowOnSmallStack() throws Exception {
+        String[] sources = {
+                "fun f() { f(); }\nf();",
+                "print " + repeat("(", 100000) + "1" + repeat(")", 100000) + ";"
+        };
+        String[] expected = {"Stack overflow.\n[line 1]\n", "Stack overflow.\n"};
+        for (int threshold : new int[] {0, Integer.MAX_VALUE}) {
+            LoxEngine engine = LoxEngine.builder()
+                    .maxCallDepth(1 << 20)
+                    .compileThreshold(threshold)
+                    .build();
+            for (int i = 0; i < sources.length; i++) {
+                String source = sources[i];
+                String[] result = new String[1];
+                Thread thread = new Thread(null, () -> result[0] = run(engine, source),
+                        "small-stack", 256 * 1024);
+                thread.start();
+                thread.join();
+                assertEquals(expected[i], result[0].replace(System.lineSeparator(), "\n"));
+            }
+        }
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) builder.append(text);
+        return builder.toString();
+    }
+
+    @Test
+    void testInterrupt() throws Exception {
+        for (LoxEngine.Backend backend : LoxEngine.Backend.values()) {
+            LoxEngine engine = LoxEngine.builder().backend(backend).build();
+            String[] result = new String[1];
+            Thread thread = new Thread(() -> result[0] = run(engine, "while (true) {}"));
+            thread.start();
+            Thread.sleep(100);
+            thread.interrupt();
+            thread.join();
+            assertEquals("Execution cancelled.\n[line 1]\n",
+                    result[0].replace(System.lineSeparator(), "\n"));
+        }
+    }
+
+    @Test
+    void testConcurrentSessions() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                String source = i % 2 == 0
+                        ? "var n = " + i + "; for (var j = 0; j < 1000; j = j + 1) n = n + 1; print n;"
+                        : "print undefined" + i + ";";
+                results.add(executor.submit(() -> run(engine, source)));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                String expected = i % 2 == 0
+                        ? (i + 1000) + "\n"
+                        : "Undefined variable 'undefined" + i + "'.\n[line 1]\n";
+                assertEquals(expected, results.get(i).get()
+                        .replace(System.lineSeparator(), "\n"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testProgramCache() {
+        String source = "class Point { init(x) { this.x = x; } twice() { return this.x * 2; } }\n" +
+                "var p = Point(3); p.x = p.x + 1; print p.twice();";
+        for (LoxEngine.Backend backend : LoxEngine.Backend.values()) {
+            LoxEngine engine = LoxEngine.builder()
+                    .backend(backend)
+                    .global("limit", 3)
+                    .programCacheSize(1024)
+                    .build();
+            for (int i = 0; i < 3; i++) {
+                assertEquals("8\n", run(engine, source)
+                        .replace(System.lineSeparator(), "\n"));
+            }
+
+            ProgramCache cache = engine.programCache();
+            assertEquals(1, cache.entries());
+            assertEquals(1, cache.misses());
+            assertEquals(2, cache.hits());
+        }
+    }
+
+    @Test
+    void testProgramCacheEviction() {
+        LoxEngine engine = LoxEngine.builder().programCacheSize(20).build();
+        run(engine, "print 1;");
+        run(engine, "print 2;");
+        run(engine, "print 1;");
+        run(engine, "print 3;");
+        run(engine, "print 2;");
+
+        ProgramCache cache = engine.programCache();
+        assertEquals(2, cache.entries());
+        assertEquals(1, cache.hits());
+        assertEquals(4, cache.misses());
+        assertEquals(2, cache.evictions());
+    }
+
+    @Test
+    void testProgramCacheOnlyForNewSessions() {
+        LoxEngine engine = LoxEngine.builder().programCacheSize(1024).build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream printStream = new PrintStream(out);
+        LoxSession session = engine.newSession(printStream, printStream);
+
+        session.run("var a = 1;");
+        session.run("print a;");
+
+        assertEquals("1\n", out.toString().replace(System.lineSeparator(), "\n"));
+        assertEquals(1, engine.programCache().misses());
+        assertEquals(1, engine.programCache().entries());
+    }
+
+    @Test
+    void testProgramStore(@TempDir Path directory) {
+        String source = "fun add(a, b) { return a + b; } print add(1, 2);";
+        for (int i = 0; i < 2; i++) {
+            try (LoxEngine engine = LoxEngine.builder()
+                    .programCacheSize(1024)
+                    .programStore(directory, 1 << 20)
+                    .build()) {
+                assertEquals("3\n", run(engine, source)
+                        .replace(System.lineSeparator(), "\n"));
+                assertEquals(i, engine.programCache().loads());
+            }
+        }
+
+        // 预先定义的全局变量不同，全局变量的下标不再有效，旧的记录作废
+        try (LoxEngine engine = LoxEngine.builder()
+                .global("limit", 3)
+                .programCacheSize(1024)
+                .programStore(directory, 1 << 20)
+                .build()) {
+            assertEquals("3\n", run(engine, source)
+                    .replace(System.lineSeparator(), "\n"));
+            assertEquals(0, engine.programCache().loads());
+        }
+    }
+
+    // 目录已被另一个引擎使用时只在内存中缓存，不会同时向同一个文件追加
+    @Test
+    void testProgramStoreInUse(@TempDir Path directory) {
+        LoxEngine.Builder builder = LoxEngine.builder()
+                .programCacheSize(1024)
+                .programStore(directory, 1 << 20);
+        try (LoxEngine first = builder.build()) {
+            run(first, "print 1;");
+            try (LoxEngine second = builder.build()) {
+                assertEquals("1\n", run(second, "print 1;")
+                        .replace(System.lineSeparator(), "\n"));
+                assertEquals(0, second.programCache().loads());
+            }
+        }
+
+        // 关闭后锁被释放，新的引擎可以读到之前保存的程序
+        try (LoxEngine engine = builder.build()) {
+            run(engine, "print 1;");
+            assertEquals(1, engine.programCache().loads());
+        }
+    }
+
+    @Test
+    void testProgramStoreIgnoresIncompleteRecord(@TempDir Path directory) throws Exception {
+        LoxEngine.Builder builder = LoxEngine.builder()
+                .programCacheSize(1024)
+                .programStore(directory, 1 << 20);
+        try (LoxEngine engine = builder.build()) {
+            run(engine, "print 1;");
+        }
+        try (LoxEngine engine = builder.build()) {
+            run(engine, "print 2;");
+        }
+
+        // 模拟追加第二条记录时进程退出
+        Path file = Files.list(directory).findFirst().get();
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+
+        try (LoxEngine engine = builder.build()) {
+            assertEquals("1\n", run(engine, "print 1;").replace(System.lineSeparator(), "\n"));
+            assertEquals("2\n", run(engine, "print 2;").replace(System.lineSeparator(), "\n"));
+            assertEquals(1, engine.programCache().loads());
+            assertEquals(1, engine.programCache().misses());
+        }
+    }
+}
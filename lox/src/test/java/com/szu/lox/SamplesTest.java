@@ -0,0 +1,172 @@
+package com.szu.lox;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// 按样例中的 expect 注释检查两个执行后端的输出
+class SamplesTest {
+    private static final Path SAMPLES = Paths.get("src/test/samples");
+
+    private static final Pattern EXPECTED_OUTPUT =
+            Pattern.compile("// expect: ?(.*)");
+    private static final Pattern EXPECTED_ERROR =
+            Pattern.compile("// (Error.*)");
+    private static final Pattern ERROR_LINE =
+            Pattern.compile("// \\[((java|c) )?line (\\d+)\\] (Error.*)");
+    private static final Pattern EXPECTED_RUNTIME_ERROR =
+            Pattern.compile("// expect runtime error: (.+)");
+
+    // 基准测试运行时间太长；scanning 和 expressions 是单独阶段的测试；test.lox 是没有预期结果的草稿
+    private static final List<String> SKIPPED =
+            Arrays.asList("benchmark", "scanning", "expressions", "test.lox");
+    // 只有字节码虚拟机有这些限制，调用深度限制除外
+    private static final String VM_ONLY = "limit";
+    private static final String ALL_BACKENDS = "stack_overflow.lox";
+
+    @TestFactory
+    Stream<DynamicTest> interpreter() throws IOException {
+        return tests(LoxEngine.Backend.INTERPRETER);
+    }
+
+    // 每个函数第一次调用时就编译函数体
+    @TestFactory
+    Stream<DynamicTest> compiledFunctions() throws IOException {
+        return tests(LoxEngine.builder().compileThreshold(1).build(),
+                LoxEngine.Backend.INTERPRETER);
+    }
+
+    @TestFactory
+    Stream<DynamicTest> vm() throws IOException {
+        return tests(LoxEngine.Backend.VM);
+    }
+
+    // 第一个引擎解析程序并写入磁盘，第二个引擎从磁盘读入后运行，结果应当相同
+    @TestFactory
+    Stream<DynamicTest> storedPrograms(@TempDir Path directory) throws IOException {
+        List<DynamicTest> tests = new ArrayList<>();
+        for (LoxEngine.Backend backend : LoxEngine.Backend.values()) {
+            Path store = directory.resolve(backend.name());
+            for (Path path : samples(backend)) {
+                tests.add(DynamicTest.dynamicTest(
+                        backend + " " + SAMPLES.relativize(path), () -> {
+                            for (int i = 0; i < 2; i++) {
+                                try (LoxEngine engine = storedEngine(backend, store)) {
+                                    check(engine, path);
+                                }
+                            }
+                        }));
+            }
+        }
+        return tests.stream();
+    }
+
+    private static LoxEngine storedEngine(LoxEngine.Backend backend, Path store) {
+        return LoxEngine.builder()
+                .backend(backend)
+                .programCacheSize(1 << 20)
+                .programStore(store, 1 << 24)
+                .build();
+    }
+
+    private Stream<DynamicTest> tests(LoxEngine.Backend backend) throws IOException {
+        return tests(LoxEngine.builder().backend(backend).build(), backend);
+    }
+
+    private Stream<DynamicTest> tests(LoxEngine engine, LoxEngine.Backend backend)
+            throws IOException {
+        return samples(backend).stream().map(path -> DynamicTest.dynamicTest(
+                SAMPLES.relativize(path).toString(), () -> check(engine, path)));
+    }
+
+    private static List<Path> samples(LoxEngine.Backend backend) throws IOException {
+        try (Stream<Path> files = Files.walk(SAMPLES)) {
+            return files.filter(path -> path.toString().endsWith(".lox"))
+                    .filter(path -> included(path, backend))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean included(Path path, LoxEngine.Backend backend) {
+        String directory = SAMPLES.relativize(path).getName(0).toString();
+        if (SKIPPED.contains(directory)) return false;
+        return backend == LoxEngine.Backend.VM || !directory.equals(VM_ONLY) ||
+               path.getFileName().toString().equals(ALL_BACKENDS);
+    }
+
+    private static void check(LoxEngine engine, Path path) throws Exception {
+        List<String> source = Files.readAllLines(path, StandardCharsets.UTF_8);
+        List<String> expectedOutput = new ArrayList<>();
+        List<String> expectedErrors = new ArrayList<>();
+
+        for (int i = 0; i < source.size(); i++) {
+            String line = source.get(i);
+            int lineNumber = i + 1;
+
+            Matcher matcher = EXPECTED_OUTPUT.matcher(line);
+            if (matcher.find()) {
+                expectedOutput.add(matcher.group(1));
+                continue;
+            }
+
+            matcher = EXPECTED_ERROR.matcher(line);
+            if (matcher.find()) {
+                expectedErrors.add("[line " + lineNumber + "] " + matcher.group(1));
+                continue;
+            }
+
+            matcher = ERROR_LINE.matcher(line);
+            if (matcher.find()) {
+                // 只检查 Java 实现的错误
+                if (!"c".equals(matcher.group(2))) {
+                    expectedErrors.add("[line " + matcher.group(3) + "] " + matcher.group(4));
+                }
+                continue;
+            }
+
+            matcher = EXPECTED_RUNTIME_ERROR.matcher(line);
+            if (matcher.find()) {
+                expectedErrors.add(matcher.group(1));
+                expectedErrors.add("[line " + lineNumber + "]");
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        LoxSession session = engine.newSession(new PrintStream(out, true, "UTF-8"),
+                new PrintStream(err, true, "UTF-8"));
+        // 在引擎提供的线程中运行，栈大小足以到达调用深度上限
+        Thread thread = engine.threadFactory().newThread(
+                () -> session.run(String.join("\n", source)));
+        thread.start();
+        thread.join();
+
+        assertEquals(expectedOutput, lines(out), "output");
+        assertEquals(expectedErrors, lines(err), "errors");
+    }
+
+    private static List<String> lines(ByteArrayOutputStream stream) throws IOException {
+        String text = stream.toString("UTF-8");
+        if (text.isEmpty()) return Collections.emptyList();
+        return Arrays.asList(text.split("\r?\n"));
+    }
+}
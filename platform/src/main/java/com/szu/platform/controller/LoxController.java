@@ -1,10 +1,15 @@
 package com.szu.platform.controller;
 
+import com.szu.platform.exception.BusyException;
 import com.szu.platform.service.ILoxService;
 import com.szu.platform.utils.Result;
+import com.szu.platform.vo.CacheStats;
+import com.szu.platform.vo.JobStatus;
+import com.szu.platform.vo.RunResult;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
 import java.util.Map;
 
 @RestController
@@ -20,9 +25,61 @@ public class LoxController {
     }
 
     @PostMapping("/run")
-    public Result<String> run(@RequestBody Map<String, Object> requestBody) {
+    public Result<RunResult> run(@RequestBody Map<String, Object> requestBody,
+                                 HttpServletRequest request) {
         if(!requestBody.containsKey("source")) return Result.fail("没有source键");
-        String result = loxService.run((String) requestBody.get("source"));
-        return Result.success(result,"success");
+        RunResult result = loxService.run(user(request),
+                (String) requestBody.get("source"));
+        return Result.success(result, result.isTruncated() ? "输出过长，已截断" : "success");
+    }
+
+    // 异步提交，返回任务 ID，之后通过下面的接口查询状态和结果
+    @PostMapping("/jobs")
+    public Result<String> submit(@RequestBody Map<String, Object> requestBody,
+                                 HttpServletRequest request) {
+        if(!requestBody.containsKey("source")) return Result.fail("没有source键");
+        return Result.success(loxService.submit(user(request),
+                (String) requestBody.get("source")));
+    }
+
+    @GetMapping("/jobs/{id}")
+    public Result<JobStatus> status(@PathVariable String id) {
+        JobStatus status = loxService.status(id);
+        if(status == null) return Result.fail(40400, "任务不存在");
+        return Result.success(status);
+    }
+
+    @GetMapping("/jobs/{id}/result")
+    public Result<RunResult> result(@PathVariable String id) {
+        RunResult result = loxService.result(id);
+        if(result == null) return Result.fail(40900, "任务未完成或已取消");
+        return Result.success(result, result.isTruncated() ? "输出过长，已截断" : "success");
+    }
+
+    @DeleteMapping("/jobs/{id}")
+    public Result<Boolean> cancel(@PathVariable String id) {
+        if(!loxService.cancel(id)) return Result.fail(40900, "任务不存在或已结束");
+        return Result.success(true);
+    }
+
+    @GetMapping("/cache")
+    public Result<CacheStats> cacheStats() {
+        CacheStats stats = loxService.cacheStats();
+        if(stats == null) return Result.fail("没有启用程序缓存");
+        return Result.success(stats);
+    }
+
+    // 提交者：客户端地址，各地址的提交轮流运行
+    // 浏览器的请求都经过前端的 /api 代理，代理在 X-Forwarded-For 中带上真实的客户端地址，
+    // Tomcat 只信任本机代理发来的这个请求头（server.forward-headers-strategy: native），
+    // 这里得到的是代理之前的地址；不使用请求体中客户端可以随意填写的字段
+    private static String user(HttpServletRequest request) {
+        return request.getRemoteAddr();
+    }
+
+    // 等待队列已满
+    @ExceptionHandler(BusyException.class)
+    public Result<Void> busy(BusyException e) {
+        return Result.fail(50300, e.getMessage());
     }
 }
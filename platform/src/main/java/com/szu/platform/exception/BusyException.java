@@ -0,0 +1,9 @@
+package com.szu.platform.exception;
+
+// 等待队列已满，暂时不能接受新的提交
+public class BusyException extends RuntimeException {
+
+    public BusyException() {
+        super("服务繁忙，请稍后再试");
+    }
+}
@@ -1,6 +1,26 @@
 package com.szu.platform.service;
 
+import com.szu.platform.vo.CacheStats;
+import com.szu.platform.vo.JobStatus;
+import com.szu.platform.vo.RunResult;
+
 public interface ILoxService {
 
-    String run(String code);
+    // 提交并等待运行结束；user 标识提交者，同一用户的提交按顺序排队
+    RunResult run(String user, String code);
+
+    // 提交后立即返回任务 ID，等待队列已满时抛出 BusyException
+    String submit(String user, String code);
+
+    // 任务不存在（或已过期）时返回 null
+    JobStatus status(String id);
+
+    // 任务还没有结束或已被取消时返回 null
+    RunResult result(String id);
+
+    // 取消排队或正在运行的任务，任务不存在或已经结束时返回 false
+    boolean cancel(String id);
+
+    // 程序缓存的命中、未命中和淘汰次数，没有启用缓存时返回 null
+    CacheStats cacheStats();
 }
@@ -0,0 +1,43 @@
+package com.szu.platform.service.impl;
+
+import com.szu.platform.vo.RunResult;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+// 一次异步提交：在工作线程中运行，记录是否已经开始和结束的时间
+class LoxJob extends FutureTask<RunResult> {
+    final String id;
+    // 提交者，调度器按用户轮流运行
+    final String user;
+    private volatile boolean started = false;
+    // 结束（完成或取消）的时间，用于清理过期的任务
+    private volatile long finishedAt = 0;
+
+    LoxJob(String id, String user, Callable<RunResult> task) {
+        super(task);
+        this.id = id;
+        this.user = user;
+    }
+
+    @Override
+    public void run() {
+        started = true;
+        super.run();
+    }
+
+    @Override
+    protected void done() {
+        finishedAt = System.currentTimeMillis();
+    }
+
+    String state() {
+        if (isCancelled()) return "CANCELLED";
+        if (isDone()) return "DONE";
+        return started ? "RUNNING" : "QUEUED";
+    }
+
+    long finishedAt() {
+        return finishedAt;
+    }
+}
@@ -0,0 +1,111 @@
+package com.szu.platform.service.impl;
+
+import com.szu.platform.exception.BusyException;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// 按用户公平排队的调度器：同时运行的提交数有上限，各用户的等待提交轮流出队，
+// 一个用户连续提交很多次也不会让其他用户一直等待
+class LoxScheduler {
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    // 所有用户等待的提交总数上限和单个用户的上限，超过时拒绝而不是无限堆积
+    private final int queueCapacity;
+    private final int userQueueCapacity;
+    // 有等待提交的用户，按轮转顺序排列；出队后把该用户移到末尾
+    private final Map<String, ArrayDeque<LoxJob>> queues = new LinkedHashMap<>();
+    private int queued = 0;
+    private int inFlight = 0;
+
+    LoxScheduler(ThreadFactory threadFactory, boolean virtualThreads,
+                 int maxInFlight, int queueCapacity, int userQueueCapacity) {
+        ExecutorService virtual = virtualThreads ? virtualThreadExecutor() : null;
+        // 同时运行的数量由调度器控制，平台线程池的大小与之相同即可
+        this.executor = virtual != null
+                ? virtual
+                : Executors.newFixedThreadPool(maxInFlight, threadFactory);
+        this.maxInFlight = maxInFlight;
+        this.queueCapacity = queueCapacity;
+        this.userQueueCapacity = userQueueCapacity;
+    }
+
+    // 每个提交一个虚拟线程；JDK 不支持虚拟线程时返回 null，改用平台线程池
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    synchronized void submit(LoxJob job) {
+        ArrayDeque<LoxJob> queue = queues.get(job.user);
+        if (queued >= queueCapacity ||
+                (queue != null && queue.size() >= userQueueCapacity)) {
+            throw new BusyException();
+        }
+
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(job.user, queue);
+        }
+        queue.add(job);
+        queued++;
+        dispatch();
+    }
+
+    // 从等待队列中移除已取消的提交，释放它占用的名额
+    synchronized void remove(LoxJob job) {
+        ArrayDeque<LoxJob> queue = queues.get(job.user);
+        if (queue == null || !queue.remove(job)) return;
+        queued--;
+        if (queue.isEmpty()) queues.remove(job.user);
+    }
+
+    synchronized int queued() {
+        return queued;
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void dispatch() {
+        while (inFlight < maxInFlight && !queues.isEmpty()) {
+            Iterator<Map.Entry<String, ArrayDeque<LoxJob>>> users =
+                    queues.entrySet().iterator();
+            Map.Entry<String, ArrayDeque<LoxJob>> next = users.next();
+            users.remove();
+
+            ArrayDeque<LoxJob> queue = next.getValue();
+            LoxJob job = queue.poll();
+            queued--;
+            if (!queue.isEmpty()) queues.put(next.getKey(), queue);
+
+            inFlight++;
+            executor.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    finished();
+                }
+            });
+        }
+    }
+
+    private synchronized void finished() {
+        inFlight--;
+        dispatch();
+    }
+}
@@ -1,35 +1,201 @@
 package com.szu.platform.service.impl;
 
-import com.szu.lox.Lox;
+import com.szu.lox.LoxEngine;
+import com.szu.lox.LoxSession;
+import com.szu.lox.ProgramCache;
 import com.szu.platform.service.ILoxService;
+import com.szu.platform.utils.BoundedOutputStream;
+import com.szu.platform.vo.CacheStats;
+import com.szu.platform.vo.JobStatus;
+import com.szu.platform.vo.RunResult;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import javax.annotation.PreDestroy;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 @Service
 public class LoxServiceImpl implements ILoxService {
 
-    private final PrintStream systemOut = System.out;
-    private final PrintStream systemErr = System.err;
+    // 引擎不持有运行状态，所有请求共享
+    private final LoxEngine engine;
+    // 每次提交最多收集的输出字节数
+    private final int outputLimit;
+    // 在工作线程中运行提交，限制同时运行的数量并按用户公平排队
+    private final LoxScheduler scheduler;
+    // 已提交的任务，结束后保留一段时间供查询结果
+    private final Map<String, LoxJob> jobs = new ConcurrentHashMap<>();
+    private final long jobRetention;
+    // 保留的已结束任务数上限，每个任务最多持有 outputLimit 字节的输出，超出时先删除最早结束的
+    private final int maxRetainedJobs;
+    // 定期删除过期的任务，没有新的提交时结果也不会一直占用内存
+    private final ScheduledExecutorService cleaner;
+
+    // 每次提交的时间、步数和内存限制，死循环以运行时错误结束，不会一直占用请求线程
+    public LoxServiceImpl(@Value("${lox.time-limit-ms:5000}") long timeLimit,
+                          @Value("${lox.instruction-limit:0}") long instructionLimit,
+                          @Value("${lox.memory-limit-bytes:0}") long memoryLimit,
+                          @Value("${lox.output-limit-bytes:65536}") int outputLimit,
+                          @Value("${lox.max-call-depth:1024}") int maxCallDepth,
+                          @Value("${lox.thread-stack-bytes:0}") long threadStackSize,
+                          @Value("${lox.max-in-flight:4}") int maxInFlight,
+                          @Value("${lox.queue-capacity:64}") int queueCapacity,
+                          @Value("${lox.user-queue-capacity:4}") int userQueueCapacity,
+                          @Value("${lox.virtual-threads:false}") boolean virtualThreads,
+                          @Value("${lox.job-retention-ms:600000}") long jobRetention,
+                          @Value("${lox.max-retained-jobs:1024}") int maxRetainedJobs,
+                          @Value("${lox.program-cache-chars:0}") long programCacheSize,
+                          @Value("${lox.program-store-dir:}") String programStoreDirectory,
+                          @Value("${lox.program-store-bytes:67108864}") long programStoreSize) {
+        LoxEngine.Builder builder = LoxEngine.builder()
+                .timeLimit(timeLimit)
+                .instructionLimit(instructionLimit)
+                .memoryLimit(memoryLimit)
+                .maxCallDepth(maxCallDepth)
+                .threadStackSize(threadStackSize)
+                .programCacheSize(programCacheSize);
+        // 解析结果同时保存到磁盘，重新部署后不必重新解析；目录被其他进程占用时只在内存中缓存
+        if (!programStoreDirectory.isEmpty()) {
+            builder.programStore(Paths.get(programStoreDirectory), programStoreSize);
+        }
+        this.engine = builder.build();
+        this.outputLimit = outputLimit;
+        // 平台线程的栈大小由引擎按调用深度上限确定，深递归报告 Stack overflow. 而不会耗尽请求线程的栈
+        this.scheduler = new LoxScheduler(engine.threadFactory(), virtualThreads,
+                maxInFlight, queueCapacity, userQueueCapacity);
+        this.jobRetention = jobRetention;
+        this.maxRetainedJobs = maxRetainedJobs;
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lox-job-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(jobRetention, 60000));
+        cleaner.scheduleWithFixedDelay(this::removeExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public RunResult run(String user, String code) {
+        LoxJob job = start(user, code);
+        try {
+            return job.get();
+        } catch (InterruptedException e) {
+            // 请求线程被中断时同时中断运行中的程序
+            job.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            jobs.remove(job.id);
+        }
+    }
 
     @Override
-    public synchronized String run(String code) {
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        PrintStream printStream = new PrintStream(result);
-        System.setOut(printStream);
-        System.setErr(printStream);
+    public String submit(String user, String code) {
+        return start(user, code).id;
+    }
+
+    @Override
+    public JobStatus status(String id) {
+        LoxJob job = jobs.get(id);
+        return job == null ? null : new JobStatus(id, job.state());
+    }
 
+    @Override
+    public RunResult result(String id) {
+        LoxJob job = jobs.get(id);
+        if (job == null || !job.isDone() || job.isCancelled()) return null;
         try {
-            Lox.runApi(code);
-        } catch(IOException e){
-            return e.toString();
+            return job.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (CancellationException e) {
+            return null;
         }
+    }
 
-        System.setOut(systemOut);
-        System.setErr(systemErr);
+    @Override
+    public boolean cancel(String id) {
+        LoxJob job = jobs.get(id);
+        // 中断工作线程，运行中的程序在下一次预算检查时以 Execution cancelled. 结束
+        if (job == null || !job.cancel(true)) return false;
+        scheduler.remove(job);
+        return true;
+    }
+
+    @Override
+    public CacheStats cacheStats() {
+        ProgramCache cache = engine.programCache();
+        if (cache == null) return null;
+        return new CacheStats(cache.entries(), cache.hits(), cache.misses(),
+                cache.evictions(), cache.loads());
+    }
+
+    private LoxJob start(String user, String code) {
+        removeExpired();
+        LoxJob job = new LoxJob(UUID.randomUUID().toString(), user, () -> execute(code));
+        // 排队已满时抛出 BusyException，任务不会被记录
+        scheduler.submit(job);
+        jobs.put(job.id, job);
+        return job;
+    }
+
+    // 删除结束时间超过保留期限的任务，已结束的任务仍然超过上限时删除最早结束的
+    private synchronized void removeExpired() {
+        long expired = System.currentTimeMillis() - jobRetention;
+        // 以结束时间判断是否结束：isDone() 变为 true 之后才记录结束时间
+        jobs.values().removeIf(job -> job.finishedAt() != 0 && job.finishedAt() < expired);
+
+        List<LoxJob> finished = jobs.values().stream()
+                .filter(job -> job.finishedAt() != 0)
+                .sorted(Comparator.comparingLong(LoxJob::finishedAt))
+                .collect(Collectors.toList());
+        for (int i = 0; i < finished.size() - maxRetainedJobs; i++) {
+            jobs.remove(finished.get(i).id);
+        }
+    }
+
+    private RunResult execute(String code) {
+        // 每次提交使用独立的会话和输出，不再替换全局的 System.out/System.err，可以并发执行
+        // 输出有上限，超出的部分直接丢弃
+        BoundedOutputStream result = new BoundedOutputStream(outputLimit);
+        PrintStream printStream;
+        try {
+            printStream = new PrintStream(result, false, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        LoxSession session = engine.newSession(printStream, printStream);
+        LoxSession.Status status = session.run(code);
+
+        return new RunResult(status.name(), result.toString(), result.isTruncated(),
+                session.instructions(), session.allocatedBytes());
+    }
 
-        return result.toString();
+    @PreDestroy
+    public void shutdown() {
+        cleaner.shutdownNow();
+        scheduler.shutdown();
+        jobs.clear();
+        // 释放程序存储的文件锁，重新部署的进程可以继续使用同一个目录
+        engine.close();
     }
 }
@@ -0,0 +1,70 @@
+package com.szu.platform.utils;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// 有上限的输出流：写满 limit 字节后丢弃后面的输出，并记录输出被截断
+// 死循环打印的程序最多只占用 limit 字节内存
+public class BoundedOutputStream extends OutputStream {
+    private final int limit;
+    private byte[] bytes = new byte[256];
+    private int count = 0;
+    private boolean truncated = false;
+
+    public BoundedOutputStream(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) {
+        // 逐字节写入直接放进缓冲区，不创建临时数组
+        if (count >= limit) {
+            truncated = true;
+            return;
+        }
+        if (count == bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.min(limit, bytes.length * 2));
+        }
+        bytes[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        int accepted = Math.min(len, limit - count);
+        if (accepted < len) truncated = true;
+        if (accepted <= 0) return;
+
+        if (count + accepted > bytes.length) {
+            bytes = Arrays.copyOf(bytes,
+                    Math.min(limit, Math.max(count + accepted, bytes.length * 2)));
+        }
+        System.arraycopy(b, off, bytes, count, accepted);
+        count += accepted;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public String toString() {
+        int end = count;
+        // 截断处可能落在一个多字节字符中间，去掉不完整的字符
+        if (truncated) {
+            int start = end;
+            while (start > 0 && (bytes[start - 1] & 0xC0) == 0x80) start--;
+            if (start > 0 && (bytes[start - 1] & 0x80) != 0 &&
+                end - start + 1 < utf8Length(bytes[start - 1])) {
+                end = start - 1;
+            }
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private static int utf8Length(byte lead) {
+        if ((lead & 0xE0) == 0xC0) return 2;
+        if ((lead & 0xF0) == 0xE0) return 3;
+        return 4;
+    }
+}
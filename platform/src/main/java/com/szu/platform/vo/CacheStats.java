@@ -0,0 +1,18 @@
+package com.szu.platform.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// 程序缓存的使用情况
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CacheStats {
+    private int entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+    // 从磁盘上的存储读入的次数
+    private long loads;
+}
@@ -0,0 +1,15 @@
+package com.szu.platform.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// 异步提交的状态
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class JobStatus {
+    private String id;
+    // QUEUED、RUNNING、DONE 或 CANCELLED
+    private String state;
+}
@@ -0,0 +1,22 @@
+package com.szu.platform.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// 一次提交的运行结果
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RunResult {
+    // OK、COMPILE_ERROR 或 RUNTIME_ERROR
+    private String status;
+    // 程序输出和错误信息
+    private String output;
+    // 输出超过上限，只保留了前面的部分
+    private boolean truncated;
+    // 执行的步数（循环次数与函数调用次数之和）
+    private long instructions;
+    // 估算分配的内存（字节）
+    private long allocatedBytes;
+}
@@ -0,0 +1,60 @@
+package com.szu.platform.controller;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// 每次只运行一个提交，每个客户端最多一个提交在排队
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "lox.max-in-flight=1",
+        "lox.queue-capacity=8",
+        "lox.user-queue-capacity=1",
+        "lox.time-limit-ms=60000",
+        "lox.instruction-limit=0",
+        "lox.program-store-dir="
+})
+class LoxControllerTest {
+    private static final String LOOP = "while (true) {}";
+
+    @Autowired
+    private TestRestTemplate rest;
+
+    private final List<String> submitted = new ArrayList<>();
+
+    // 以代理转发的方式提交，X-Forwarded-For 是浏览器的地址
+    @SuppressWarnings("unchecked")
+    private int submit(String client) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("X-Forwarded-For", client);
+        Map<String, Object> result = rest.postForObject("/code/lox/jobs",
+                new HttpEntity<>(Collections.singletonMap("source", LOOP), headers), Map.class);
+        int code = (Integer) result.get("code");
+        if (code == 20000) submitted.add((String) result.get("data"));
+        return code;
+    }
+
+    @Test
+    void testClientsHaveSeparateQueues() {
+        try {
+            // 第一个提交开始运行，第二个排队，第三个超出该客户端的排队上限
+            assertEquals(20000, submit("10.0.0.1"));
+            assertEquals(20000, submit("10.0.0.1"));
+            assertEquals(50300, submit("10.0.0.1"));
+            // 另一个客户端有自己的队列
+            assertEquals(20000, submit("10.0.0.2"));
+            assertEquals(50300, submit("10.0.0.2"));
+        } finally {
+            for (String id : submitted) rest.delete("/code/lox/jobs/" + id);
+        }
+    }
+}
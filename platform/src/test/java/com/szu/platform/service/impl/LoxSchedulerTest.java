@@ -0,0 +1,107 @@
+package com.szu.platform.service.impl;
+
+import com.szu.platform.exception.BusyException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoxSchedulerTest {
+    // 第一个提交一直运行到 latch 打开，后面的提交都在队列中等待
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+    private LoxScheduler scheduler;
+
+    @AfterEach
+    void tearDown() {
+        latch.countDown();
+        scheduler.shutdown();
+    }
+
+    private LoxScheduler scheduler(int queueCapacity, int userQueueCapacity) {
+        scheduler = new LoxScheduler(Executors.defaultThreadFactory(), false,
+                1, queueCapacity, userQueueCapacity);
+        return scheduler;
+    }
+
+    private LoxJob blocker() {
+        LoxJob job = new LoxJob("blocker", "blocker", () -> {
+            latch.await();
+            return null;
+        });
+        scheduler.submit(job);
+        return job;
+    }
+
+    private LoxJob job(String id, String user) {
+        LoxJob job = new LoxJob(id, user, () -> {
+            order.add(id);
+            return null;
+        });
+        scheduler.submit(job);
+        return job;
+    }
+
+    @Test
+    void testRoundRobin() throws Exception {
+        scheduler(16, 4);
+        blocker();
+        List<LoxJob> jobs = Arrays.asList(
+                job("a1", "a"), job("a2", "a"), job("a3", "a"),
+                job("b1", "b"), job("b2", "b"), job("c1", "c"));
+        assertEquals(6, scheduler.queued());
+        assertEquals(1, scheduler.inFlight());
+
+        latch.countDown();
+        for (LoxJob job : jobs) job.get(5, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("a1", "b1", "c1", "a2", "b2", "a3"), order);
+        assertEquals(0, scheduler.queued());
+    }
+
+    @Test
+    void testQueueCapacity() {
+        scheduler(3, 2);
+        blocker();
+        job("a1", "a");
+        job("a2", "a");
+        // 单个用户的上限
+        assertThrows(BusyException.class, () -> job("a3", "a"));
+        job("b1", "b");
+        // 所有用户的总数上限
+        assertThrows(BusyException.class, () -> job("c1", "c"));
+        assertEquals(3, scheduler.queued());
+    }
+
+    @Test
+    void testCancelWhileQueued() throws Exception {
+        scheduler(16, 1);
+        blocker();
+        LoxJob cancelled = job("a1", "a");
+        assertThrows(BusyException.class, () -> job("a2", "a"));
+
+        assertTrue(cancelled.cancel(false));
+        scheduler.remove(cancelled);
+        assertEquals(0, scheduler.queued());
+        assertEquals("CANCELLED", cancelled.state());
+
+        // 取消释放了该用户的名额
+        LoxJob next = job("a2", "a");
+        assertEquals("QUEUED", next.state());
+        latch.countDown();
+        next.get(5, TimeUnit.SECONDS);
+
+        assertEquals(Collections.singletonList("a2"), order);
+        assertEquals("DONE", next.state());
+    }
+}
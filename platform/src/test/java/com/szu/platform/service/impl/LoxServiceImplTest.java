@@ -0,0 +1,39 @@
+package com.szu.platform.service.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LoxServiceImplTest {
+    // 最多保留两个已结束的任务，没有程序缓存和磁盘存储
+    private final LoxServiceImpl service = new LoxServiceImpl(5000, 0, 0, 65536, 1024, 0,
+            1, 64, 4, false, 600000, 2, 0, "", 0);
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    private String finished(String code) throws InterruptedException {
+        String id = service.submit("user", code);
+        while (!"DONE".equals(service.status(id).getState())) Thread.sleep(10);
+        return id;
+    }
+
+    @Test
+    void testMaxRetainedJobs() throws Exception {
+        String first = finished("print 1;");
+        String second = finished("print 2;");
+        String third = finished("print 3;");
+        // 下一次提交时已结束的任务超过上限，删除最早结束的
+        String fourth = finished("print 4;");
+
+        assertNull(service.status(first));
+        assertNotNull(service.status(second));
+        assertEquals("3" + System.lineSeparator(), service.result(third).getOutput());
+        assertNotNull(service.status(fourth));
+    }
+}
@@ -0,0 +1,70 @@
+package com.szu.platform.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BoundedOutputStreamTest {
+
+    private static BoundedOutputStream write(String text, int limit) {
+        BoundedOutputStream stream = new BoundedOutputStream(limit);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        stream.write(bytes, 0, bytes.length);
+        return stream;
+    }
+
+    @Test
+    void testExactLimit() {
+        BoundedOutputStream stream = write("abc", 3);
+        assertEquals("abc", stream.toString());
+        assertFalse(stream.isTruncated());
+
+        stream.write('d');
+        assertEquals("abc", stream.toString());
+        assertTrue(stream.isTruncated());
+    }
+
+    @Test
+    void testZeroLimit() {
+        BoundedOutputStream stream = write("a", 0);
+        assertEquals("", stream.toString());
+        assertTrue(stream.isTruncated());
+    }
+
+    // 截断处落在多字节字符中间时去掉不完整的字符，恰好在字符结尾时保留
+    @Test
+    void testMultiByteCharacters() {
+        String[] characters = {"é", "€", "😀"};
+        for (String character : characters) {
+            String text = "a" + character + "b";
+            int length = character.getBytes(StandardCharsets.UTF_8).length;
+
+            for (int cut = 1; cut < length; cut++) {
+                BoundedOutputStream stream = write(text, 1 + cut);
+                assertEquals("a", stream.toString(), character + " cut after " + cut);
+                assertTrue(stream.isTruncated());
+            }
+
+            BoundedOutputStream stream = write(text, 1 + length);
+            assertEquals("a" + character, stream.toString());
+            assertTrue(stream.isTruncated());
+
+            stream = write("a" + character, 1 + length);
+            assertEquals("a" + character, stream.toString());
+            assertFalse(stream.isTruncated());
+        }
+    }
+
+    // 逐字节写入与整段写入的结果相同
+    @Test
+    void testSingleByteWrites() {
+        BoundedOutputStream stream = new BoundedOutputStream(4);
+        for (byte b : "a😀".getBytes(StandardCharsets.UTF_8)) stream.write(b);
+        assertEquals("a", stream.toString());
+        assertTrue(stream.isTruncated());
+    }
+}
@@ -6,6 +6,9 @@ export function runLox(data) {
   return request({
     url: baseUrl + '/lox/run',
     method: 'post',
+    // 服务端的运行时间上限为 lox.time-limit-ms（5 秒），另外还可能在队列中等待；
+    // 请求超时必须明显大于两者之和，否则浏览器先超时，看不到 "Execution time limit exceeded." 的结果
+    timeout: 30000,
     data
   })
 }
@@ -41,6 +41,8 @@ module.exports = {
       '^/api': {
         target: 'http://localhost:8080/',
         changeOrigin: true,
+        // 在 X-Forwarded-For 中带上浏览器的地址，后端按它区分提交者
+        xfwd: true,
         pathRewrite: { '^/api': '' }
       }
     }